@@ -0,0 +1,132 @@
+package gitlet;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares Java serialization, the format of older versions, with the
+ * binary codec for the objects gitlet reads on every command: a commit
+ * with a tree, a commit with a file map (the initial commit and commits
+ * written by older versions), and a stage of staged files. The size of
+ * each object in both formats is printed at the end of every trial.
+ *
+ * @author zdkk
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+
+    /** Number of files in the file-map commit and in the stage. */
+    @Param({"1", "100", "10000"})
+    private int files;
+
+    private Commit treeCommit;
+    private Commit mapCommit;
+    private Stage stage;
+    private byte[] treeCommitSerialized;
+    private byte[] treeCommitEncoded;
+    private byte[] mapCommitSerialized;
+    private byte[] mapCommitEncoded;
+    private byte[] stageSerialized;
+    private byte[] stageEncoded;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Random random = new Random(61);
+        Map<String, String> blobs = new HashMap<>();
+        stage = new Stage();
+        for (int i = 0; i < files; i += 1) {
+            String name = "src/dir" + (i % 50) + "/File" + i + ".java";
+            String sha1 = Utils.sha1(name, Integer.toString(random.nextInt()));
+            blobs.put(name, sha1);
+            stage.addBlob(name, sha1);
+        }
+        mapCommit = new Commit();
+        mapCommit.getBlobs().putAll(blobs);
+        List<String> parents = new ArrayList<>();
+        parents.add(mapCommit.getSha1());
+        treeCommit = new Commit("Add the benchmark files", Utils.sha1("tree"), parents);
+
+        treeCommitSerialized = Utils.serialize(treeCommit);
+        treeCommitEncoded = treeCommit.encode();
+        mapCommitSerialized = Utils.serialize(mapCommit);
+        mapCommitEncoded = mapCommit.encode();
+        stageSerialized = Utils.serialize(stage);
+        stageEncoded = stage.encode();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        System.out.printf("%n%d files: tree commit %d -> %d bytes, map commit %d -> %d bytes,"
+                        + " stage %d -> %d bytes%n", files,
+                treeCommitSerialized.length, treeCommitEncoded.length,
+                mapCommitSerialized.length, mapCommitEncoded.length,
+                stageSerialized.length, stageEncoded.length);
+    }
+
+    @Benchmark
+    public byte[] serializeTreeCommit() {
+        return Utils.serialize(treeCommit);
+    }
+
+    @Benchmark
+    public byte[] encodeTreeCommit() {
+        return treeCommit.encode();
+    }
+
+    @Benchmark
+    public Commit deserializeTreeCommit() {
+        return Utils.deserialize(treeCommitSerialized, Commit.class);
+    }
+
+    @Benchmark
+    public Commit decodeTreeCommit() {
+        return Commit.decode(treeCommitEncoded);
+    }
+
+    @Benchmark
+    public byte[] serializeMapCommit() {
+        return Utils.serialize(mapCommit);
+    }
+
+    @Benchmark
+    public byte[] encodeMapCommit() {
+        return mapCommit.encode();
+    }
+
+    @Benchmark
+    public Commit deserializeMapCommit() {
+        return Utils.deserialize(mapCommitSerialized, Commit.class);
+    }
+
+    @Benchmark
+    public Commit decodeMapCommit() {
+        return Commit.decode(mapCommitEncoded);
+    }
+
+    @Benchmark
+    public byte[] serializeStage() {
+        return Utils.serialize(stage);
+    }
+
+    @Benchmark
+    public byte[] encodeStage() {
+        return stage.encode();
+    }
+
+    @Benchmark
+    public Stage deserializeStage() {
+        return Utils.deserialize(stageSerialized, Stage.class);
+    }
+
+    @Benchmark
+    public Stage decodeStage() {
+        return Stage.decode(stageEncoded);
+    }
+}
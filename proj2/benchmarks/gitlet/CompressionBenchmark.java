@@ -0,0 +1,110 @@
+package gitlet;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the plain and the deflated repository format on large text
+ * blobs: writing an object (CPU for compression against bytes written),
+ * reading its content back, and checking it out to a working file (the
+ * plain format can use the zero-copy path, the deflated one must inflate).
+ * The stored size of each object is printed at the end of every trial.
+ *
+ * @author zdkk
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompressionBenchmark {
+
+    /** ObjectStore.FORMAT_PLAIN or ObjectStore.FORMAT_DEFLATE. */
+    @Param({"1", "2"})
+    private int format;
+
+    /** Size in bytes of the blob content. */
+    @Param({"65536", "1048576", "16777216"})
+    private int size;
+
+    private File gitletDir;
+    private File target;
+    private ObjectStore store;
+    private byte[] stored;
+    private String sha1;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        gitletDir = Files.createTempDirectory("gitlet-bench").toFile();
+        Utils.join(gitletDir, "objects").mkdir();
+        target = Utils.join(gitletDir, "checkout.txt");
+        store = new ObjectStore(gitletDir, new Transaction(gitletDir));
+        store.initFormat(format);
+
+        byte[] content = sourceText(size, new Random(61));
+        ByteArrayOutputStream blob = new ByteArrayOutputStream();
+        blob.write(Blob.header("Bench.java"));
+        blob.write(content);
+        stored = blob.toByteArray();
+        sha1 = new Blob("Bench.java", content).getSha1();
+        store.write(sha1, ObjectStore.TYPE_BLOB, stored);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        File objectFile = Utils.join(gitletDir, "objects", sha1);
+        System.out.printf("%nformat %d: %d content bytes stored in %d bytes (%.1f%%)%n",
+                format, size, objectFile.length(), 100.0 * objectFile.length() / stored.length);
+        for (File file : Utils.join(gitletDir, "objects").listFiles()) {
+            file.delete();
+        }
+        Utils.join(gitletDir, "objects").delete();
+        Utils.join(gitletDir, "format").delete();
+        target.delete();
+        gitletDir.delete();
+    }
+
+    @Benchmark
+    public void writeObject() {
+        store.write(sha1, ObjectStore.TYPE_BLOB, stored);
+    }
+
+    @Benchmark
+    public byte[] readObject() {
+        return store.readBlobContent(sha1);
+    }
+
+    @Benchmark
+    public void checkoutObject() {
+        store.copyBlobTo(sha1, target);
+    }
+
+    /** Returns about SIZE bytes of text that compresses roughly like source
+     *  code: short indented lines drawn from a small vocabulary. */
+    static byte[] sourceText(int size, Random random) {
+        String[] words = {"int", "return", "value", "count", "for", "if", "else",
+            "String", "name", "index", "result", "this", "new", "List", "map", "get"};
+        StringBuilder sb = new StringBuilder(size + 80);
+        while (sb.length() < size) {
+            int indent = random.nextInt(4) * 4;
+            sb.append(" ".repeat(indent));
+            int n = 2 + random.nextInt(6);
+            for (int i = 0; i < n; i += 1) {
+                sb.append(words[random.nextInt(words.length)]);
+                sb.append(i == n - 1 ? ";\n" : " ");
+            }
+            if (random.nextInt(8) == 0) {
+                sb.append(random.nextInt(100000)).append('\n');
+            }
+        }
+        return sb.substring(0, size).getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,107 @@
+package gitlet;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the line diff behind "gitlet diff" and merge on files of source
+ * code-like lines: matching the lines of two versions, and writing the
+ * unified diff of them. The versions differ by a few scattered edits, by
+ * an edit every tenth line, or completely, the case in which the cost
+ * limit of the Myers search matters.
+ *
+ * @author zdkk
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DiffBenchmark {
+
+    /** Number of lines in each version. */
+    @Param({"1000", "100000"})
+    private int lines;
+
+    /** How the two versions differ: "few", "many" or "unrelated". */
+    @Param({"few", "many", "unrelated"})
+    private String edits;
+
+    private Diff.Lines base;
+    private Diff.Lines changed;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Random random = new Random(18);
+        StringBuilder a = new StringBuilder();
+        StringBuilder b = new StringBuilder();
+        for (int i = 0; i < lines; i += 1) {
+            String line = line(random, i);
+            a.append(line);
+            switch (edits) {
+                case "few":
+                    b.append(i % 1000 == 500 ? line(random, -i) : line);
+                    break;
+                case "many":
+                    if (i % 10 == 0) {
+                        b.append(line(random, -i));
+                    } else if (i % 10 != 5) {
+                        b.append(line);
+                    }
+                    break;
+                default:
+                    b.append(line(random, -i));
+                    break;
+            }
+        }
+        base = new Diff.Lines(ByteBuffer.wrap(a.toString().getBytes(StandardCharsets.UTF_8)));
+        changed = new Diff.Lines(ByteBuffer.wrap(b.toString().getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /** Returns a line like those of source code, with a few repeating
+     *  lines such as closing braces among them. */
+    private static String line(Random random, int i) {
+        switch (random.nextInt(8)) {
+            case 0:
+                return "    }\n";
+            case 1:
+                return "\n";
+            default:
+                return "        int value" + i + " = compute(" + random.nextInt(1000) + ");\n";
+        }
+    }
+
+    @Benchmark
+    public int[] match() {
+        return Diff.match(base, changed);
+    }
+
+    @Benchmark
+    public long unified() throws IOException {
+        CountingStream out = new CountingStream();
+        Diff.writeUnified(base, changed, out);
+        return out.count;
+    }
+
+    /** Counts the bytes written to it and discards them. */
+    private static class CountingStream extends OutputStream {
+        private long count;
+
+        @Override
+        public void write(int b) {
+            count += 1;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
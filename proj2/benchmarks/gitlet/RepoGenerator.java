@@ -0,0 +1,170 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+
+/**
+ * Builds synthetic gitlet repositories for the benchmarks: FILES files of
+ * source-like text in directories of DIR_SIZE, imported in one commit on
+ * master, then COMMITS commits of CHANGES_PER_COMMIT edited files each,
+ * spread round robin over BRANCHES branches ("master", "branch-1", ...)
+ * forked from the import. Each branch edits its own share of the files, so
+ * merging two of them never conflicts. The branch "base" stays at the
+ * import.
+ *
+ * Everything is done through Main.execute, as the commands a user would
+ * run, so the repository is the same as one built by hand. Repository reads
+ * the working directory from user.dir once, when it is loaded, so a JVM can
+ * only generate and use one repository; the benchmarks fork one per trial.
+ *
+ * @author zdkk
+ */
+class RepoGenerator {
+    /** Files per directory of the generated tree. */
+    static final int DIR_SIZE = 32;
+    /** Files edited by each generated commit. */
+    static final int CHANGES_PER_COMMIT = 8;
+    /** Size in bytes of each generated file. */
+    private static final int FILE_SIZE = 2048;
+
+    private final int files;
+    private final Random random;
+    private File dir;
+    private int edits;
+
+    RepoGenerator(int files, long seed) {
+        this.files = files;
+        this.random = new Random(seed);
+    }
+
+    /** Creates the repository described above in a new temporary directory,
+     *  makes it the working directory, and returns it. Exits with an
+     *  exception if any command fails. */
+    File generate(int commits, int branches) throws IOException {
+        dir = Files.createTempDirectory("gitlet-repo").toFile();
+        System.setProperty("user.dir", dir.getPath());
+        check("init");
+        for (int i = 0; i < files; i += 1) {
+            write(i);
+        }
+        check("add", ".");
+        check("commit", "import");
+        check("branch", "base");
+        for (int b = 1; b < branches; b += 1) {
+            check("branch", branch(b));
+        }
+
+        String current = "master";
+        for (int c = 0; c < commits; c += 1) {
+            int b = c % branches;
+            if (!branch(b).equals(current)) {
+                current = branch(b);
+                check("checkout", current);
+            }
+            List<String> changed = new ArrayList<>();
+            for (int k = 0; k < CHANGES_PER_COMMIT; k += 1) {
+                int i = random.nextInt(Math.max(1, files / branches)) * branches + b;
+                if (i < files) {
+                    write(i);
+                    changed.add(path(i));
+                }
+            }
+            if (changed.isEmpty()) {
+                continue;
+            }
+            List<String> add = new ArrayList<>(changed);
+            add.add(0, "add");
+            check(add.toArray(new String[0]));
+            check("commit", "change " + c);
+        }
+        if (!current.equals("master")) {
+            check("checkout", "master");
+        }
+        return dir;
+    }
+
+    /** Returns the name of branch B. */
+    static String branch(int b) {
+        return b == 0 ? "master" : "branch-" + b;
+    }
+
+    /** Returns the path of generated file I. */
+    static String path(int i) {
+        return "src/d" + (i / DIR_SIZE) + "/F" + i + ".java";
+    }
+
+    /** Writes new contents, unlike any written before, to generated file I. */
+    void write(int i) throws IOException {
+        File file = Utils.join(dir, path(i));
+        file.getParentFile().mkdirs();
+        byte[] stamp = ("// edit " + edits + "\n").getBytes(StandardCharsets.UTF_8);
+        byte[] text = CompressionBenchmark.sourceText(FILE_SIZE, random);
+        edits += 1;
+        Files.write(file.toPath(), concat(stamp, text));
+    }
+
+    /** Runs the command ARGS, and returns what it printed. */
+    static String capture(String... args) {
+        PrintStream out = System.out;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(bytes, true));
+        try {
+            Main.execute(args);
+        } finally {
+            System.setOut(out);
+        }
+        return bytes.toString(StandardCharsets.UTF_8);
+    }
+
+    /** Runs the command ARGS, discarding what it prints. */
+    static void run(String... args) {
+        PrintStream out = System.out;
+        System.setOut(NULL);
+        try {
+            Main.execute(args);
+        } finally {
+            System.setOut(out);
+        }
+    }
+
+    /** Runs the command ARGS, which must print nothing. */
+    static void check(String... args) {
+        String output = capture(args);
+        if (!output.isEmpty()) {
+            throw new IllegalStateException(String.join(" ", args) + ": " + output);
+        }
+    }
+
+    /** Deletes DIR and everything under it. */
+    static void delete(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                delete(file);
+            }
+        }
+        dir.delete();
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] result = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+
+    private static final PrintStream NULL = new PrintStream(new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    });
+}
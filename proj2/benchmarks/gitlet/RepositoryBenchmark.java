@@ -0,0 +1,124 @@
+package gitlet;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.BenchmarkParams;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures whole gitlet commands, as Main runs them, on repositories of
+ * different sizes made by RepoGenerator: FILES files, COMMITS commits and
+ * BRANCHES branches. Each command runs on master, in the state the
+ * generator leaves it, and whatever it prints is discarded.
+ *
+ * Commands that change the repository are set up again before every call:
+ * add and commit each have one file changed for them, and merge starts from
+ * the same master head every time. Checkout switches between master and
+ * the branch "base" at the first commit, which changes the files every
+ * branch has edited since.
+ *
+ * Repository reads the working directory once per JVM, so every trial
+ * needs its own fork; running with -f 0 measures the wrong repository.
+ *
+ * @author zdkk
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RepositoryBenchmark {
+
+    /** Number of files in the working tree. */
+    @Param({"100", "1000"})
+    private int files;
+
+    /** Number of commits after the first. */
+    @Param({"10", "100"})
+    private int commits;
+
+    /** Number of branches the commits are spread over. */
+    @Param({"2", "8"})
+    private int branches;
+
+    private RepoGenerator generator;
+    private File dir;
+    private String master;
+    private boolean onBase;
+    private int calls;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        generator = new RepoGenerator(files, 71);
+        dir = generator.generate(commits, branches);
+        master = Utils.readContentsAsString(Utils.join(dir, ".gitlet", "refs", "heads", "master"));
+        RepoGenerator.check("merge", RepoGenerator.branch(1));
+        RepoGenerator.check("reset", master);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        RepoGenerator.delete(dir);
+    }
+
+    /** Changes a file for add, stages one for commit, or resets master for
+     *  merge. */
+    @Setup(Level.Invocation)
+    public void change(BenchmarkParams params) throws IOException {
+        String benchmark = params.getBenchmark();
+        if (benchmark.endsWith(".add") || benchmark.endsWith(".commit")) {
+            generator.write(0);
+        }
+        if (benchmark.endsWith(".commit")) {
+            RepoGenerator.check("add", RepoGenerator.path(0));
+        }
+        if (benchmark.endsWith(".merge")) {
+            RepoGenerator.check("reset", master);
+        }
+    }
+
+    @Benchmark
+    public void add() {
+        RepoGenerator.run("add", ".");
+    }
+
+    @Benchmark
+    public void commit() {
+        calls += 1;
+        RepoGenerator.run("commit", "benchmark " + calls);
+    }
+
+    @Benchmark
+    public void status() {
+        RepoGenerator.run("status");
+    }
+
+    @Benchmark
+    public void log() {
+        RepoGenerator.run("log");
+    }
+
+    @Benchmark
+    public void globalLog() {
+        RepoGenerator.run("global-log");
+    }
+
+    @Benchmark
+    public void find() {
+        RepoGenerator.run("find", "change 1");
+    }
+
+    @Benchmark
+    public void checkout() {
+        onBase = !onBase;
+        RepoGenerator.run("checkout", onBase ? "base" : "master");
+    }
+
+    @Benchmark
+    public void merge() {
+        RepoGenerator.run("merge", RepoGenerator.branch(1));
+    }
+}
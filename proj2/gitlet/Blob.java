@@ -1,28 +1,153 @@
 package gitlet;
 
-import java.io.Serializable;
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
 
 public class Blob implements Serializable {
 
+    /**
+     * A stored blob is "blob NAME\0" followed by the file content as is, so
+     * checkout can copy the content straight out of the object file without
+     * deserializing anything. Blobs written by older versions are serialized
+     * Blob objects instead.
+     */
+    private static final String HEADER = "blob ";
+
+    /** Keeps blobs serialized by older versions readable. */
+    private static final long serialVersionUID = 6257626793205291862L;
+
+    /** Files are hashed and copied in pieces of this size, so adding a file
+     *  takes the same memory however large it is. */
+    private static final int CHUNK_SIZE = 64 * 1024;
+
     // original file name
     private String fileName;
-    // file data
+    // file data, only present in blobs serialized by older versions
     private String bytes;
     // hash(file)
     private String sha1;
 
 
+    /** The blob of working file FILENAME. The file is hashed in chunks and
+     *  is not kept in memory. */
     public Blob(String fileName) {
         this.fileName = fileName;
-        this.bytes = readFile(fileName);
-        this.sha1 = generatedSha1();
+        try {
+            this.sha1 = hashFile(fileName, workingFile(fileName), null);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** The blob of file FILENAME with contents CONTENT. */
+    public Blob(String fileName, byte[] content) {
+        this.fileName = fileName;
+        this.sha1 = Utils.sha1(fileName, content.length + "", content);
     }
 
-    public Blob(String fileName, String bytes) {
+    private Blob(String fileName, String sha1) {
         this.fileName = fileName;
-        this.bytes = bytes;
-        this.sha1 = generatedSha1();
+        this.sha1 = sha1;
+    }
+
+    /**
+     * Hashes working file FILENAME and stores its object, unless it is stored
+     * already (see ObjectWriter). A file of up to IN_MEMORY_LIMIT bytes is
+     * read once, hashed, and written only if new; a larger one is hashed and
+     * written in the same pass, each chunk read going both to the digest and
+     * to a temporary object file, which is renamed to the SHA-1 once the
+     * whole file has been read. Several files may be stored at once from
+     * different threads; the caller registers the new objects with the
+     * object store afterwards.
+     */
+    static Blob store(String fileName) {
+        return store(fileName, workingFile(fileName));
+    }
+
+    /** Stores the blob of file FILENAME whose content is that of SOURCE, as
+     *  store(FILENAME) does for a working file. */
+    static Blob store(String fileName, File source) {
+        ObjectWriter writer = Repository.OBJECT_STORE.writer();
+        if (source.length() <= ObjectWriter.IN_MEMORY_LIMIT) {
+            byte[] content = Utils.readContents(source);
+            Blob blob = new Blob(fileName, content);
+            writer.write(blob.sha1, header(fileName), content);
+            return new Blob(fileName, blob.sha1);
+        }
+        File temp = writer.newTemp();
+        try {
+            String sha1;
+            try (OutputStream out = Repository.OBJECT_STORE.encode(
+                    new BufferedOutputStream(new FileOutputStream(temp)))) {
+                out.write(header(fileName));
+                sha1 = hashFile(fileName, source, out);
+            }
+            writer.install(temp, sha1);
+            return new Blob(fileName, sha1);
+        } catch (IOException excp) {
+            temp.delete();
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Returns the blob of file FILENAME whose object SHA1 is already stored. */
+    static Blob ofStored(String fileName, String sha1) {
+        return new Blob(fileName, sha1);
+    }
+
+    /** Returns the blob SHA1 whose stored bytes are DATA. */
+    static Blob fromStored(String sha1, byte[] data) {
+        int start = contentOffset(ByteBuffer.wrap(data));
+        String name = new String(data, HEADER.length(), start - HEADER.length() - 1,
+                StandardCharsets.UTF_8);
+        return new Blob(name, sha1);
+    }
+
+    /**
+     * Returns the position in BUF, relative to its start, at which the file
+     * content of a stored blob begins, or -1 if BUF does not hold a blob in
+     * the stored format.
+     */
+    static int contentOffset(ByteBuffer buf) {
+        int limit = buf.limit();
+        if (limit < HEADER.length()) {
+            return -1;
+        }
+        for (int i = 0; i < HEADER.length(); i += 1) {
+            if (buf.get(i) != HEADER.charAt(i)) {
+                return -1;
+            }
+        }
+        for (int i = HEADER.length(); i < limit; i += 1) {
+            if (buf.get(i) == 0) {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    /** Reads past the header of the stored blob at the start of IN.
+     *  Returns false if IN does not hold a blob in the stored format. */
+    static boolean skipHeader(InputStream in) throws IOException {
+        byte[] prefix = in.readNBytes(HEADER.length());
+        if (!HEADER.equals(new String(prefix, StandardCharsets.UTF_8))) {
+            return false;
+        }
+        int b;
+        do {
+            b = in.read();
+        } while (b > 0);
+        return b == 0;
     }
 
     public String getFileName() {
@@ -32,28 +157,57 @@ public class Blob implements Serializable {
         return sha1;
     }
 
-    public String getBytes() {
-        return bytes;
+    /** Returns the file data of a blob serialized by an older version. */
+    byte[] getLegacyBytes() {
+        return bytes.getBytes(StandardCharsets.UTF_8);
     }
 
-
-    public void save() {
-        File saveFile = Utils.join(Repository.OBJECTS_DIR, sha1);
-        Utils.writeObject(saveFile, this);
+    /** Returns the SHA-1 that the file of a blob serialized by an older
+     *  version has now. Older versions hashed the length of the file in
+     *  chars, not bytes, so the two differ if it has non-ASCII text, and
+     *  migrate stores the blob under both. */
+    String currentSha1() {
+        return new Blob(fileName, getLegacyBytes()).sha1;
     }
 
     @Override
     public String toString() {
-        return fileName + " " + sha1 + "\n" + bytes;
+        return fileName + " " + sha1;
     }
 
 
-    private String readFile(String filename) {
-        File file = Utils.join(Repository.CWD, fileName);
-        return Utils.readContentsAsString(file);
+    private static File workingFile(String fileName) {
+        return Utils.join(Repository.CWD, fileName);
+    }
+
+    /** Returns the header that starts the stored form of a blob of FILENAME. */
+    static byte[] header(String fileName) {
+        return (HEADER + fileName + "\0").getBytes(StandardCharsets.UTF_8);
     }
 
-    private String generatedSha1() {
-        return Utils.sha1(fileName, this.bytes.length() + "", this.bytes);
+    /**
+     * Returns the SHA-1 of the blob of FILE named FILENAME, computed over the
+     * same fields as a blob built in memory: the name, the length in bytes and
+     * the content. (Older versions hashed the length in chars; see
+     * currentSha1.) The content is read CHUNK_SIZE bytes at a time and, if OUT
+     * is not null, each chunk is also written to OUT.
+     */
+    private static String hashFile(String fileName, File file, OutputStream out)
+            throws IOException {
+        MessageDigest md = Utils.sha1Digest();
+        md.update(fileName.getBytes(StandardCharsets.UTF_8));
+        md.update(Long.toString(file.length()).getBytes(StandardCharsets.UTF_8));
+        byte[] buf = new byte[CHUNK_SIZE];
+        try (InputStream in = new FileInputStream(file)) {
+            int n;
+            while ((n = in.read(buf)) > 0) {
+                md.update(buf, 0, n);
+                Stats.count(Stats.Counter.BYTES_HASHED, n);
+                if (out != null) {
+                    out.write(buf, 0, n);
+                }
+            }
+        }
+        return Utils.bytesToSha1(md.digest());
     }
 }
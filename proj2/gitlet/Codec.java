@@ -0,0 +1,80 @@
+package gitlet;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Helpers for the binary formats of commits and stages, which replace Java
+ * serialization. An encoded object starts with a header naming its kind,
+ * followed by a version byte, so a reader can tell it from a serialized
+ * object written by an older version:
+ *
+ * object:  kind (ASCII) | \0 | version (1) | field...
+ * string:  length (4) | UTF-8 bytes
+ * sha1:    20 raw bytes
+ *
+ * @author zdkk
+ */
+class Codec {
+    /** Version of the formats written. */
+    static final int VERSION = 1;
+    private static final int SHA1_BYTES = Utils.UID_LENGTH / 2;
+
+    /** Returns a stream to encode an object of kind KIND into, its header
+     *  already written. */
+    static DataOutputStream writer(ByteArrayOutputStream bytes, String kind) throws IOException {
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.write(header(kind));
+        out.writeByte(VERSION);
+        return out;
+    }
+
+    /** Returns a stream over the fields of DATA, an encoded object of kind
+     *  KIND, after checking its header and version. */
+    static DataInputStream reader(byte[] data, String kind) throws IOException {
+        int start = header(kind).length;
+        if (data[start] > VERSION) {
+            throw Utils.error("Unknown %s format %d.", kind, data[start]);
+        }
+        return new DataInputStream(new ByteArrayInputStream(data, start + 1,
+                data.length - start - 1));
+    }
+
+    /** Returns true if DATA is an encoded object of kind KIND. */
+    static boolean isEncoded(byte[] data, String kind) {
+        byte[] header = header(kind);
+        return data.length > header.length
+                && Arrays.equals(data, 0, header.length, header, 0, header.length);
+    }
+
+    static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    static void writeSha1(DataOutputStream out, String sha1) throws IOException {
+        out.write(Utils.sha1ToBytes(sha1));
+    }
+
+    static String readSha1(DataInputStream in) throws IOException {
+        byte[] sha1 = new byte[SHA1_BYTES];
+        in.readFully(sha1);
+        return Utils.bytesToSha1(sha1);
+    }
+
+    private static byte[] header(String kind) {
+        return (kind + "\0").getBytes(StandardCharsets.UTF_8);
+    }
+}
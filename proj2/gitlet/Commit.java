@@ -1,34 +1,61 @@
 package gitlet;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.io.Serializable;
-import java.io.File;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.*;
 
 /**
- * Represents a gitlet commit object.
+ * Represents a gitlet commit object. Commits are stored in a binary format
+ * (see Codec):
+ *
+ * commit:  "commit\0" | version (1) | sha1 | message | timestamp
+ *          | parent count (1) | parent sha1... | has tree (1)
+ *          | tree sha1, or file count (4) | (file name | blob sha1)...
+ *
+ * Commits written by older versions are serialized Java objects, which are
+ * still read.
  *
  * @author zdkk
  */
 public class Commit implements Serializable {
     public static final int SHA1_LENGTH = 40;
+    private static final String KIND = "commit";
+    /** Keeps commits serialized by older versions readable. */
+    private static final long serialVersionUID = 6085724035187716471L;
     /** The message of this Commit. */
     private String message;
-    // filename-sha1
+    // filename-sha1, only in the initial commit and commits written by older versions
     private Map<String, String> blobs;
+    // sha1 of the root Tree, in all other commits
+    private String tree;
     // parents nodes' sha1
     private List<String> parents;
     // init time
     private String timestamp;
     private String sha1;
 
-    public Commit(String message, Map<String, String> blobs, List<String> parents) {
+    /** A commit with MESSAGE and PARENTS whose files are those of the Tree TREE. */
+    public Commit(String message, String tree, List<String> parents) {
         this.message = message;
-        this.blobs = blobs;
+        this.tree = tree;
         this.parents = parents;
         this.timestamp = calcTimestamp(new Date());
-        this.sha1 = generatedSha1();
+        this.sha1 = Utils.sha1(message, timestamp, parents.toString(), tree);
+    }
+
+    private Commit(String sha1, String message, String timestamp, List<String> parents,
+                   String tree, Map<String, String> blobs) {
+        this.sha1 = sha1;
+        this.message = message;
+        this.timestamp = timestamp;
+        this.parents = parents;
+        this.tree = tree;
+        this.blobs = blobs;
     }
 
     public Commit() {
@@ -47,8 +74,36 @@ public class Commit implements Serializable {
         return timestamp;
     }
 
+    /** Returns all files of this commit, as an unmodifiable map from path to
+     *  blob sha1. For a commit with a tree, the whole tree is read unless the
+     *  object store still has it flattened (see ObjectStore.readFiles), so
+     *  callers that look up many files should keep the map. */
     public Map<String, String> getBlobs() {
-        return blobs;
+        if (tree == null) {
+            return Collections.unmodifiableMap(blobs);
+        }
+        return Repository.OBJECT_STORE.readFiles(tree);
+    }
+
+    /** Returns the sha1 of the root tree this commit was stored with, or
+     *  null if it was stored with a file map, which getBlobs returns. */
+    String storedTree() {
+        return tree;
+    }
+
+    /** Returns this commit, under the same sha1, with its file map stored
+     *  in STORE as a root tree, as migrate rewrites it. Blob sha1s that are
+     *  keys of RENAMED are replaced by their values. A commit that has a
+     *  tree already, or no files, is returned as it is. */
+    Commit withTree(ObjectStore store, Map<String, String> renamed) {
+        if (tree != null || blobs.isEmpty()) {
+            return this;
+        }
+        Map<String, String> files = new HashMap<>();
+        for (Map.Entry<String, String> blob : blobs.entrySet()) {
+            files.put(blob.getKey(), renamed.getOrDefault(blob.getValue(), blob.getValue()));
+        }
+        return new Commit(sha1, message, timestamp, parents, Tree.build(files, store), null);
     }
 
     public List<String> getParents() {
@@ -61,32 +116,102 @@ public class Commit implements Serializable {
 
 
     public void save() {
-        File saveFile = Utils.join(Repository.OBJECTS_DIR, sha1);
-        Utils.writeObject(saveFile, this);
+        Repository.OBJECT_STORE.write(sha1, ObjectStore.TYPE_COMMIT, encode());
+    }
+
+    /** Returns the stored form of this commit. */
+    byte[] encode() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = Codec.writer(bytes, KIND)) {
+            Codec.writeSha1(out, sha1);
+            Codec.writeString(out, message);
+            Codec.writeString(out, timestamp);
+            out.writeByte(parents.size());
+            for (String parent : parents) {
+                Codec.writeSha1(out, parent);
+            }
+            out.writeBoolean(tree != null);
+            if (tree != null) {
+                Codec.writeSha1(out, tree);
+            } else {
+                out.writeInt(blobs.size());
+                for (Map.Entry<String, String> blob : blobs.entrySet()) {
+                    Codec.writeString(out, blob.getKey());
+                    Codec.writeSha1(out, blob.getValue());
+                }
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        return bytes.toByteArray();
+    }
+
+    /** Returns the commit whose stored bytes are DATA, in either format. */
+    static Commit decode(byte[] data) {
+        if (!isEncoded(data)) {
+            return Utils.deserialize(data, Commit.class);
+        }
+        try (DataInputStream in = Codec.reader(data, KIND)) {
+            String sha1 = Codec.readSha1(in);
+            String message = Codec.readString(in);
+            String timestamp = Codec.readString(in);
+            int count = in.readUnsignedByte();
+            List<String> parents = new ArrayList<>(count);
+            for (int i = 0; i < count; i += 1) {
+                parents.add(Codec.readSha1(in));
+            }
+            if (in.readBoolean()) {
+                return new Commit(sha1, message, timestamp, parents, Codec.readSha1(in), null);
+            }
+            int files = in.readInt();
+            Map<String, String> blobs = new HashMap<>();
+            for (int i = 0; i < files; i += 1) {
+                blobs.put(Codec.readString(in), Codec.readSha1(in));
+            }
+            return new Commit(sha1, message, timestamp, parents, null, blobs);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Returns true if DATA is a commit in the binary format. */
+    static boolean isEncoded(byte[] data) {
+        return Codec.isEncoded(data, KIND);
     }
 
     public boolean containsBlob(Blob blob) {
-        return blob.getSha1().equals(blobs.getOrDefault(blob.getFileName(), null));
+        return blob.getSha1().equals(getSha1ByName(blob.getFileName()));
     }
 
     public boolean containsBlob(String filename) {
-        return blobs.containsKey(filename);
+        return getSha1ByName(filename) != null;
     }
 
+    /** Returns the blob sha1 of file FILENAME, a path, or null if this commit
+     *  does not have it. Only the trees on the way to it are read. */
     public String getSha1ByName(String filename) {
-        return blobs.getOrDefault(filename, null);
+        if (tree == null) {
+            return blobs.getOrDefault(filename, null);
+        }
+        return Tree.lookup(tree, filename, Repository.OBJECT_STORE);
     }
 
     public Commit findParent() {
         if (parents.isEmpty()) {
             return null;
         }
-        File parentFile = Utils.join(Repository.OBJECTS_DIR, parents.get(0));
-        return Utils.readObject(parentFile, this.getClass());
+        return Repository.OBJECT_STORE.readCommit(parents.get(0));
     }
 
     @Override
     public String toString() {
+        return toLogEntry(sha1, parents, timestamp, message);
+    }
+
+    /** Returns the log entry of the commit SHA1 with PARENTS, TIMESTAMP and
+     *  MESSAGE, as printed by log and global-log. */
+    static String toLogEntry(String sha1, List<String> parents, String timestamp,
+                             String message) {
         if (parents.size() <= 1) {
             return String.format("===\ncommit %s\nDate: %s\n%s\n", sha1, timestamp, message);
         } else {
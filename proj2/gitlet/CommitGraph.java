@@ -0,0 +1,318 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.function.Predicate;
+
+/**
+ * A persistent cache of the commit graph: for every commit, its parents and
+ * its generation number (1 for a root, otherwise one more than its highest
+ * parent). Merge-base queries run entirely on this cache and never read a
+ * commit object.
+ *
+ * The file is append-only. A commit is always appended after its parents,
+ * so parents are stored as the positions of earlier records:
+ *
+ * commit-graph:  magic | version | record...
+ * record:        sha1 (20 bytes) | generation (4) | parent count (1) | parent position (4)...
+ *
+ * Commits missing from the file, e.g. in repositories created before it
+ * existed, are added on first use by reading their objects once.
+ *
+ * A shallow clone (see Remote) lacks the parents of the commits listed in
+ * .gitlet/shallow, one SHA-1 per line. They are recorded as roots, so walks
+ * and merge-base queries stop cleanly at the boundary of the history that
+ * is there.
+ *
+ * @author zdkk
+ */
+class CommitGraph {
+    private static final int MAGIC = 0x47475248;  // "GGRH"
+    private static final int VERSION = 1;
+    private static final int HEADER_LENGTH = 8;
+    private static final int SHA1_BYTES = Utils.UID_LENGTH / 2;
+
+    private final File file;
+    private final File shallowFile;
+    private final ObjectStore store;
+    private Set<String> shallow;
+    /** The stamps (see Utils.stamp) of the graph and shallow files when
+     *  they were read. */
+    private List<Long> graphStamp;
+    private List<Long> shallowStamp;
+
+    private List<String> shas;
+    private List<Integer> generations;
+    private List<int[]> parents;
+    private Map<String, Integer> positions;
+
+    CommitGraph(File gitletDir, ObjectStore store) {
+        this.file = Utils.join(gitletDir, "commit-graph");
+        this.shallowFile = Utils.join(gitletDir, "shallow");
+        this.store = store;
+    }
+
+    /** Records COMMIT, and any of its ancestors not yet recorded. */
+    void add(Commit commit) {
+        load();
+        if (!positions.containsKey(commit.getSha1())) {
+            for (String parent : parentsOf(commit)) {
+                position(parent);
+            }
+            append(commit.getSha1(), parentsOf(commit));
+        }
+    }
+
+    /**
+     * Returns the SHA-1 of the latest common ancestor of commits A and B: a
+     * common ancestor that is not an ancestor of any other common ancestor.
+     *
+     * Both commits are painted down the graph in order of decreasing
+     * generation, so every commit is reached by all its descendants among
+     * the painted ones before it is taken off the queue. The first commit
+     * taken off carrying both colors is therefore a common ancestor with no
+     * common ancestor above it, and the walk stops there. Ties in generation
+     * go to the commit recorded last.
+     */
+    String mergeBase(String a, String b) {
+        final int fromA = 1;
+        final int fromB = 2;
+        int posA = position(a);
+        int posB = position(b);
+        Map<Integer, Integer> colors = new HashMap<>();
+        PriorityQueue<Integer> queue = new PriorityQueue<>((x, y) -> {
+            int cmp = Integer.compare(generations.get(y), generations.get(x));
+            return cmp != 0 ? cmp : Integer.compare(y, x);
+        });
+        colors.merge(posA, fromA, (x, y) -> x | y);
+        colors.merge(posB, fromB, (x, y) -> x | y);
+        queue.add(posA);
+        if (posB != posA) {
+            queue.add(posB);
+        }
+        while (!queue.isEmpty()) {
+            int pos = queue.poll();
+            int color = colors.get(pos);
+            if (color == (fromA | fromB)) {
+                return shas.get(pos);
+            }
+            for (int p : parents.get(pos)) {
+                int old = colors.getOrDefault(p, 0);
+                if ((old | color) != old) {
+                    if (old == 0) {
+                        queue.add(p);
+                    }
+                    colors.put(p, old | color);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the commits among HEAD and its ancestors for which KNOWN does
+     * not hold, parents before children. The walk does not go past a known
+     * commit, whose ancestors are known as well, so its cost follows the
+     * number of commits returned. If DEPTH is positive, only commits fewer
+     * than DEPTH parent links away from HEAD are returned.
+     */
+    List<String> missing(String head, Predicate<String> known, int depth) {
+        List<Integer> found = new ArrayList<>();
+        if (known.test(head)) {
+            return new ArrayList<>();
+        }
+        Map<Integer, Integer> distances = new HashMap<>();
+        Deque<Integer> queue = new ArrayDeque<>();
+        int start = position(head);
+        distances.put(start, 0);
+        queue.add(start);
+        while (!queue.isEmpty()) {
+            int pos = queue.poll();
+            int distance = distances.get(pos);
+            found.add(pos);
+            if (depth > 0 && distance + 1 >= depth) {
+                continue;
+            }
+            for (int p : parents.get(pos)) {
+                if (!distances.containsKey(p) && !known.test(shas.get(p))) {
+                    distances.put(p, distance + 1);
+                    queue.add(p);
+                }
+            }
+        }
+        // records come after those of their parents
+        Collections.sort(found);
+        List<String> result = new ArrayList<>(found.size());
+        for (int pos : found) {
+            result.add(shas.get(pos));
+        }
+        return result;
+    }
+
+    /** Returns true if the parents of commit SHA1 are missing from this
+     *  shallow repository. */
+    boolean isShallow(String sha1) {
+        return shallow().contains(sha1);
+    }
+
+    /** Records that the parents of the commits SHA1S are missing, through
+     *  TRANSACTION, before the commits themselves are added. */
+    void addShallow(Collection<String> sha1s, Transaction transaction) {
+        Set<String> updated = new TreeSet<>(shallow());
+        if (!updated.addAll(sha1s)) {
+            return;
+        }
+        StringBuilder contents = new StringBuilder();
+        for (String sha1 : updated) {
+            contents.append(sha1).append('\n');
+        }
+        transaction.replace(shallowFile, contents.toString());
+        shallow = updated;
+    }
+
+    /** Drops the graph and the shallow boundary read so far if another
+     *  process has changed them since, so that they are read again on next
+     *  use. Appending to a stale graph would record wrong positions. */
+    void refresh() {
+        if (positions != null && !Utils.stamp(file).equals(graphStamp)) {
+            positions = null;
+        }
+        if (shallow != null && !Utils.stamp(shallowFile).equals(shallowStamp)) {
+            shallow = null;
+        }
+    }
+
+    private Set<String> shallow() {
+        if (shallow == null) {
+            shallowStamp = Utils.stamp(shallowFile);
+            shallow = new HashSet<>();
+            if (shallowFile.exists()) {
+                for (String line : Utils.readContentsAsString(shallowFile).split("\n")) {
+                    if (!line.isEmpty()) {
+                        shallow.add(line);
+                    }
+                }
+            }
+        }
+        return shallow;
+    }
+
+    /** Returns the parents of COMMIT as recorded here: none for a commit at
+     *  the boundary of a shallow repository. */
+    private List<String> parentsOf(Commit commit) {
+        return isShallow(commit.getSha1()) ? Collections.emptyList() : commit.getParents();
+    }
+
+    /** Returns the position of commit SHA1, adding it and its ancestors
+     *  from their objects if they are not recorded yet. */
+    private int position(String sha1) {
+        load();
+        Integer pos = positions.get(sha1);
+        if (pos != null) {
+            return pos;
+        }
+        Deque<Commit> stack = new ArrayDeque<>();
+        stack.push(store.readCommit(sha1));
+        while (!stack.isEmpty()) {
+            Commit commit = stack.peek();
+            boolean ready = true;
+            for (String parent : parentsOf(commit)) {
+                if (!positions.containsKey(parent)) {
+                    stack.push(store.readCommit(parent));
+                    ready = false;
+                }
+            }
+            if (ready) {
+                stack.pop();
+                if (!positions.containsKey(commit.getSha1())) {
+                    append(commit.getSha1(), parentsOf(commit));
+                }
+            }
+        }
+        return positions.get(sha1);
+    }
+
+    private void append(String sha1, List<String> parentShas) {
+        int[] parentPositions = new int[parentShas.size()];
+        int generation = 0;
+        for (int i = 0; i < parentPositions.length; i += 1) {
+            parentPositions[i] = positions.get(parentShas.get(i));
+            generation = Math.max(generation, generations.get(parentPositions[i]));
+        }
+        generation += 1;
+
+        boolean fresh = !file.exists();
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file, true)))) {
+            if (fresh) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+            }
+            out.write(Utils.sha1ToBytes(sha1));
+            out.writeInt(generation);
+            out.writeByte(parentPositions.length);
+            for (int p : parentPositions) {
+                out.writeInt(p);
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        record(sha1, generation, parentPositions);
+    }
+
+    private void record(String sha1, int generation, int[] parentPositions) {
+        positions.put(sha1, shas.size());
+        shas.add(sha1);
+        generations.add(generation);
+        parents.add(parentPositions);
+    }
+
+    /** Reads the graph file, dropping a record cut short by an interrupted append. */
+    private void load() {
+        if (positions != null) {
+            return;
+        }
+        shas = new ArrayList<>();
+        generations = new ArrayList<>();
+        parents = new ArrayList<>();
+        positions = new HashMap<>();
+        graphStamp = Utils.stamp(file);
+        if (!file.exists()) {
+            return;
+        }
+        ByteBuffer buf = ByteBuffer.wrap(Utils.readContents(file));
+        if (buf.remaining() < HEADER_LENGTH || buf.getInt() != MAGIC || buf.getInt() != VERSION) {
+            throw Utils.error("Corrupt commit graph.");
+        }
+        byte[] sha1 = new byte[SHA1_BYTES];
+        int complete = buf.position();
+        while (buf.remaining() >= SHA1_BYTES + 5) {
+            buf.get(sha1);
+            int generation = buf.getInt();
+            int count = buf.get();
+            if (buf.remaining() < 4 * count) {
+                break;
+            }
+            int[] parentPositions = new int[count];
+            for (int i = 0; i < count; i += 1) {
+                parentPositions[i] = buf.getInt();
+            }
+            record(Utils.bytesToSha1(sha1), generation, parentPositions);
+            complete = buf.position();
+        }
+        if (complete < buf.limit()) {
+            try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+                out.setLength(complete);
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+            graphStamp = Utils.stamp(file);
+        }
+    }
+}
@@ -0,0 +1,239 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * An append-only journal of every commit in the repository, so that
+ * global-log and find never have to list the objects directory or read an
+ * object. Messages are kept apart from the fixed fields, and an inverted
+ * index maps the SHA-1 of each message to the commits that have it:
+ *
+ * journal:                          magic | version | record...
+ * record:                           sha1 (20 bytes) | timestamp (UTF) | parent count (1)
+ *                                   | parent (20)... | message offset (8) | message length (4)
+ * journal.msg:                      message bytes, back to back
+ * message-index, message-index.log: sha1 of message (20) | commit sha1 (20)...
+ *
+ * Repositories created before the journal existed get it built once from
+ * their objects.
+ *
+ * A crash during an append can leave a record, or messages, cut short at
+ * the end. Reading stops at the last complete record, and the next append
+ * first cuts both files back to it, so it never lands after the torn bytes.
+ *
+ * @author zdkk
+ */
+class CommitJournal {
+    private static final int MAGIC = 0x474a524e;        // "GJRN"
+    private static final int VERSION = 1;
+    private static final int INDEX_MAGIC = 0x474d5358;  // "GMSX"
+    private static final int SHA1_BYTES = Utils.UID_LENGTH / 2;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final File journalFile;
+    private final File messagesFile;
+    private final SortedIndex messageIndex;
+    private final ObjectStore store;
+
+    CommitJournal(File gitletDir, ObjectStore store) {
+        this.journalFile = Utils.join(gitletDir, "journal");
+        this.messagesFile = Utils.join(gitletDir, "journal.msg");
+        this.messageIndex = new SortedIndex(Utils.join(gitletDir, "message-index"),
+                Utils.join(gitletDir, "message-index.log"), INDEX_MAGIC, 2 * SHA1_BYTES);
+        this.store = store;
+    }
+
+    /** Records COMMIT, which has already been saved, unless it is recorded. */
+    void add(Commit commit) {
+        migrate();
+        byte[] key = indexEntry(commit);
+        if (messageIndex.contains(key)) {
+            return;
+        }
+        truncateTorn();
+        append(Collections.singletonList(commit));
+        messageIndex.add(key);
+    }
+
+    /** Drops what is loaded of the message index if another process has
+     *  changed it. The journal itself is read anew on every use. */
+    void refresh() {
+        messageIndex.refresh();
+    }
+
+    /** Passes the log entry of every commit to ACTION, in the order the
+     *  commits were recorded. The journal and messages are read sequentially. */
+    void forEach(Consumer<String> action) {
+        migrate();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(journalFile), BUFFER_SIZE));
+             InputStream messages = new BufferedInputStream(
+                     new FileInputStream(messagesFile), BUFFER_SIZE)) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw Utils.error("Corrupt commit journal.");
+            }
+            byte[] sha1 = new byte[SHA1_BYTES];
+            long position = 0;
+            while (true) {
+                String timestamp;
+                List<String> parents = new ArrayList<>();
+                long offset;
+                int length;
+                try {
+                    in.readFully(sha1);
+                    timestamp = in.readUTF();
+                    int count = in.readUnsignedByte();
+                    byte[] parent = new byte[SHA1_BYTES];
+                    for (int i = 0; i < count; i += 1) {
+                        in.readFully(parent);
+                        parents.add(Utils.bytesToSha1(parent));
+                    }
+                    offset = in.readLong();
+                    length = in.readInt();
+                } catch (EOFException excp) {
+                    break;
+                }
+                messages.skipNBytes(offset - position);
+                String message = new String(messages.readNBytes(length), StandardCharsets.UTF_8);
+                position = offset + length;
+                action.accept(Commit.toLogEntry(Utils.bytesToSha1(sha1), parents,
+                        timestamp, message));
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Returns the SHA-1s of all commits whose message is MESSAGE, in sorted
+     *  order, from the inverted message index. */
+    List<String> find(String message) {
+        migrate();
+        List<String> result = new ArrayList<>();
+        for (byte[] entry : messageIndex.find(Utils.sha1(message), Integer.MAX_VALUE,
+                e -> true)) {
+            result.add(Utils.bytesToSha1(Arrays.copyOfRange(entry, SHA1_BYTES, 2 * SHA1_BYTES)));
+        }
+        return result;
+    }
+
+    /** Appends COMMITS to the journal, each message before the record that
+     *  points at it, so an interrupted append never leaves a dangling offset. */
+    private void append(List<Commit> commits) {
+        boolean fresh = !journalFile.exists();
+        long offset = messagesFile.length();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(journalFile, true), BUFFER_SIZE))) {
+            try (BufferedOutputStream messages = new BufferedOutputStream(
+                    new FileOutputStream(messagesFile, true), BUFFER_SIZE)) {
+                for (Commit commit : commits) {
+                    messages.write(commit.getMessage().getBytes(StandardCharsets.UTF_8));
+                }
+            }
+            if (fresh) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+            }
+            for (Commit commit : commits) {
+                byte[] message = commit.getMessage().getBytes(StandardCharsets.UTF_8);
+                out.write(Utils.sha1ToBytes(commit.getSha1()));
+                out.writeUTF(commit.getTimestamp());
+                out.writeByte(commit.getParents().size());
+                for (String parent : commit.getParents()) {
+                    out.write(Utils.sha1ToBytes(parent));
+                }
+                out.writeLong(offset);
+                out.writeInt(message.length);
+                offset += message.length;
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Cuts the journal back to its last complete record whose message is
+     *  all in journal.msg, and journal.msg back to the end of that message. */
+    private void truncateTorn() {
+        ByteBuffer buf = ByteBuffer.wrap(Utils.readContents(journalFile));
+        if (buf.remaining() < 8 || buf.getInt() != MAGIC || buf.getInt() != VERSION) {
+            throw Utils.error("Corrupt commit journal.");
+        }
+        long messages = messagesFile.length();
+        int complete = buf.position();
+        long end = 0;
+        while (buf.remaining() >= SHA1_BYTES + 2) {
+            buf.position(buf.position() + SHA1_BYTES);
+            int timestamp = buf.getShort() & 0xffff;
+            if (buf.remaining() < timestamp + 1) {
+                break;
+            }
+            buf.position(buf.position() + timestamp);
+            int count = buf.get() & 0xff;
+            if (buf.remaining() < count * SHA1_BYTES + 12) {
+                break;
+            }
+            buf.position(buf.position() + count * SHA1_BYTES);
+            long offset = buf.getLong();
+            int length = buf.getInt();
+            if (offset + length > messages) {
+                break;
+            }
+            complete = buf.position();
+            end = offset + length;
+        }
+        truncate(journalFile, complete);
+        truncate(messagesFile, end);
+    }
+
+    /** Cuts FILE to LENGTH bytes if it is longer. */
+    private static void truncate(File file, long length) {
+        if (file.length() <= length) {
+            return;
+        }
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            out.setLength(length);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Builds the journal and message index from the commit objects, if
+     *  the journal does not exist yet. */
+    private void migrate() {
+        if (journalFile.exists()) {
+            return;
+        }
+        List<Commit> commits = new ArrayList<>();
+        List<byte[]> entries = new ArrayList<>();
+        for (String name : store.names()) {
+            Commit commit = store.readCommitOrNull(name);
+            if (commit != null) {
+                commits.add(commit);
+                entries.add(indexEntry(commit));
+            }
+        }
+        messagesFile.delete();
+        messageIndex.build(entries);
+        append(commits);
+    }
+
+    private static byte[] indexEntry(Commit commit) {
+        byte[] result = Arrays.copyOf(Utils.sha1ToBytes(Utils.sha1(commit.getMessage())),
+                2 * SHA1_BYTES);
+        System.arraycopy(Utils.sha1ToBytes(commit.getSha1()), 0, result, SHA1_BYTES, SHA1_BYTES);
+        return result;
+    }
+}
@@ -0,0 +1,243 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.SecureRandom;
+
+/**
+ * A long-running gitlet process for one repository, so that scripts issuing
+ * many commands pay for JVM startup and for loading the indexes and caches
+ * (object store, prefix index, commit graph, journal, stat cache) once.
+ * Before each command, whatever another process has changed since, such as
+ * a push into the repository, is loaded again (see Repository.refresh).
+ *
+ * "gitlet serve" listens on a loopback port and records it, with a random
+ * token, in .gitlet/daemon, which only the owner can read. Every gitlet
+ * command run in the working directory while that file exists is forwarded
+ * by Main: the client sends its arguments, and the daemon runs them one
+ * request at a time and streams back what they print, so the output is the
+ * same as running the command directly. "gitlet serve --stop" stops it.
+ *
+ * request:   token | argument count (4) | argument...   (strings as in Codec)
+ * response:  frame... | EXIT | exit status (4)
+ * frame:     STDOUT or STDERR | length (4) | bytes
+ *
+ * A daemon file left behind by a daemon that died is ignored: when the
+ * connection is refused, the command runs in the client instead.
+ *
+ * @author zdkk
+ */
+class Daemon {
+    private static final String FILE_NAME = "daemon";
+    private static final byte EXIT = 0;
+    private static final byte STDOUT = 1;
+    private static final byte STDERR = 2;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int TOKEN_BYTES = 16;
+
+    /**
+     * Runs ARGS in the daemon of the repository in the current directory,
+     * copying its output to this process, and returns true, exiting with the
+     * command's status if it is not 0. Returns false if no daemon is running,
+     * so the caller should run the command itself.
+     */
+    static boolean forward(String[] args) {
+        if (args.length > 0 && args[0].equals("serve")
+                && !(args.length == 2 && args[1].equals("--stop"))) {
+            return false;
+        }
+        File file = Utils.join(System.getProperty("user.dir"), ".gitlet", FILE_NAME);
+        if (!file.isFile()) {
+            return false;
+        }
+        String[] address = Utils.readContentsAsString(file).trim().split(" ");
+        int status;
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(),
+                Integer.parseInt(address[0]))) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    socket.getOutputStream()));
+            Codec.writeString(out, address[1]);
+            out.writeInt(args.length);
+            for (String arg : args) {
+                Codec.writeString(out, arg);
+            }
+            out.flush();
+            status = relay(new DataInputStream(new BufferedInputStream(
+                    socket.getInputStream(), BUFFER_SIZE)));
+        } catch (ConnectException excp) {
+            return false;
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        if (status != 0) {
+            System.exit(status);
+        }
+        return true;
+    }
+
+    /** Serves commands for the repository GITLETDIR until stopped. */
+    static void serve(File gitletDir) {
+        File file = Utils.join(gitletDir, FILE_NAME);
+        if (isRunning(file)) {
+            throw Utils.error("A Gitlet daemon is already running.");
+        }
+        byte[] random = new byte[TOKEN_BYTES];
+        new SecureRandom().nextBytes(random);
+        String token = Utils.bytesToSha1(random);
+        try (ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            publish(file, server.getLocalPort() + " " + token);
+            Runtime.getRuntime().addShutdownHook(new Thread(file::delete));
+            boolean running = true;
+            while (running) {
+                try (Socket socket = server.accept()) {
+                    running = handle(socket, token);
+                } catch (IOException excp) {
+                    // the client went away; serve the next one
+                }
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Runs the request on SOCKET if it carries TOKEN. Returns false if it
+     *  asked the daemon to stop. */
+    private static boolean handle(Socket socket, String token) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                socket.getInputStream()));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                socket.getOutputStream(), BUFFER_SIZE));
+        if (!Codec.readString(in).equals(token)) {
+            return true;
+        }
+        String[] args = new String[in.readInt()];
+        for (int i = 0; i < args.length; i += 1) {
+            args[i] = Codec.readString(in);
+        }
+        if (args.length == 2 && args[0].equals("serve") && args[1].equals("--stop")) {
+            out.writeByte(EXIT);
+            out.writeInt(0);
+            out.flush();
+            return false;
+        }
+
+        PrintStream stdout = System.out;
+        PrintStream stderr = System.err;
+        PrintStream commandOut = new PrintStream(new BufferedOutputStream(
+                new FrameStream(out, STDOUT), BUFFER_SIZE), false);
+        PrintStream commandErr = new PrintStream(new BufferedOutputStream(
+                new FrameStream(out, STDERR), BUFFER_SIZE), false);
+        int status = 0;
+        System.setOut(commandOut);
+        System.setErr(commandErr);
+        try {
+            Main.execute(args);
+        } catch (RuntimeException | Error excp) {
+            commandErr.print("Exception in thread \"main\" ");
+            excp.printStackTrace(commandErr);
+            status = 1;
+        } finally {
+            System.setOut(stdout);
+            System.setErr(stderr);
+        }
+        commandOut.flush();
+        commandErr.flush();
+        out.writeByte(EXIT);
+        out.writeInt(status);
+        out.flush();
+        return true;
+    }
+
+    /** Copies the frames of a response from IN to this process's output
+     *  and error streams, and returns the exit status it ends with. */
+    private static int relay(DataInputStream in) throws IOException {
+        byte[] buf = new byte[BUFFER_SIZE];
+        try {
+            while (true) {
+                byte channel = in.readByte();
+                if (channel == EXIT) {
+                    System.out.flush();
+                    System.err.flush();
+                    return in.readInt();
+                }
+                PrintStream target = channel == STDOUT ? System.out : System.err;
+                int length = in.readInt();
+                while (length > 0) {
+                    int n = in.read(buf, 0, Math.min(buf.length, length));
+                    if (n < 0) {
+                        throw new EOFException();
+                    }
+                    target.write(buf, 0, n);
+                    length -= n;
+                }
+            }
+        } catch (EOFException excp) {
+            throw new IllegalArgumentException("gitlet daemon closed the connection");
+        }
+    }
+
+    /** Returns true if a daemon is listening at the address in FILE. */
+    private static boolean isRunning(File file) {
+        if (!file.isFile()) {
+            return false;
+        }
+        String[] address = Utils.readContentsAsString(file).trim().split(" ");
+        try {
+            new Socket(InetAddress.getLoopbackAddress(), Integer.parseInt(address[0])).close();
+            return true;
+        } catch (IOException excp) {
+            return false;
+        }
+    }
+
+    /** Writes CONTENTS to FILE, readable by the owner only, atomically. */
+    private static void publish(File file, String contents) throws IOException {
+        File temp = Utils.join(file.getParentFile(), FILE_NAME + ".tmp");
+        temp.delete();
+        temp.createNewFile();
+        temp.setReadable(false, false);
+        temp.setReadable(true, true);
+        Utils.writeContents(temp, contents);
+        Files.move(temp.toPath(), file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /** Sends what is written to it to the client as frames on one channel. */
+    private static class FrameStream extends OutputStream {
+        private final DataOutputStream out;
+        private final byte channel;
+
+        FrameStream(DataOutputStream out, byte channel) {
+            this.out = out;
+            this.channel = channel;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return;
+            }
+            out.writeByte(channel);
+            out.writeInt(len);
+            out.write(b, off, len);
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.util.*;
+
+/**
+ * Delta encoding of one object against another, used by repack to store
+ * an older version of a file as the changes from a newer one. A delta is
+ * stored in a pack in place of the object:
+ *
+ * delta:   MARKER | base sha1 (20 bytes) | result length (varint) | op...
+ * op:      n (1 to 127) followed by n bytes to insert,
+ *          or 0x80 | offset in base (varint) | length (varint) to copy from the base
+ *
+ * Matches are found by indexing the base in blocks of BLOCK bytes and
+ * rolling a hash of the same width over the target, as in git and rsync.
+ *
+ * @author zdkk
+ */
+class Delta {
+    /** First byte of a delta in a pack. No stored object starts with it. */
+    static final byte MARKER = 'd';
+    private static final int COPY = 0x80;
+    private static final int MAX_INSERT = 0x7f;
+    private static final int BLOCK = 16;
+    private static final int PRIME = 31;
+    private static final int SHA1_BYTES = Utils.UID_LENGTH / 2;
+
+    /** Returns true if the stored bytes DATA of a packed object are a delta. */
+    static boolean isDelta(byte[] data) {
+        return data.length > 0 && data[0] == MARKER;
+    }
+
+    /** Returns the SHA-1 of the base of delta DATA. */
+    static String base(byte[] data) {
+        return Utils.bytesToSha1(Arrays.copyOfRange(data, 1, 1 + SHA1_BYTES));
+    }
+
+    /** Returns a delta that turns BASE, the bytes of object BASESHA1, into TARGET. */
+    static byte[] create(String baseSha1, byte[] base, byte[] target) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(MARKER);
+        out.writeBytes(Utils.sha1ToBytes(baseSha1));
+        writeVarint(out, target.length);
+
+        Map<Integer, Integer> blocks = new HashMap<>();
+        for (int i = 0; i + BLOCK <= base.length; i += BLOCK) {
+            blocks.putIfAbsent(hash(base, i), i);
+        }
+        int power = 1;
+        for (int k = 1; k < BLOCK; k += 1) {
+            power *= PRIME;
+        }
+
+        int insertStart = 0;
+        int i = 0;
+        int h = target.length >= BLOCK ? hash(target, 0) : 0;
+        while (i + BLOCK <= target.length) {
+            Integer match = blocks.get(h);
+            if (match != null && Arrays.equals(base, match, match + BLOCK,
+                    target, i, i + BLOCK)) {
+                int length = BLOCK;
+                while (match + length < base.length && i + length < target.length
+                        && base[match + length] == target[i + length]) {
+                    length += 1;
+                }
+                int back = 0;
+                while (back < i - insertStart && back < match
+                        && base[match - back - 1] == target[i - back - 1]) {
+                    back += 1;
+                }
+                writeInsert(out, target, insertStart, i - back);
+                out.write(COPY);
+                writeVarint(out, match - back);
+                writeVarint(out, length + back);
+                i += length;
+                insertStart = i;
+                if (i + BLOCK <= target.length) {
+                    h = hash(target, i);
+                }
+                continue;
+            }
+            if (i + BLOCK < target.length) {
+                h = (h - (target[i] & 0xff) * power) * PRIME + (target[i + BLOCK] & 0xff);
+            }
+            i += 1;
+        }
+        writeInsert(out, target, insertStart, target.length);
+        return out.toByteArray();
+    }
+
+    /** Returns the bytes obtained by applying delta DATA to BASE. */
+    static byte[] apply(byte[] base, byte[] data) {
+        int[] pos = {1 + SHA1_BYTES};
+        byte[] result = new byte[(int) readVarint(data, pos)];
+        int length = 0;
+        try {
+            while (pos[0] < data.length) {
+                int op = data[pos[0]] & 0xff;
+                pos[0] += 1;
+                if (op == COPY) {
+                    int offset = (int) readVarint(data, pos);
+                    int n = (int) readVarint(data, pos);
+                    System.arraycopy(base, offset, result, length, n);
+                    length += n;
+                } else {
+                    System.arraycopy(data, pos[0], result, length, op);
+                    pos[0] += op;
+                    length += op;
+                }
+            }
+        } catch (IndexOutOfBoundsException excp) {
+            throw Utils.error("Corrupt delta against %s.", base(data));
+        }
+        if (length != result.length) {
+            throw Utils.error("Corrupt delta against %s.", base(data));
+        }
+        return result;
+    }
+
+    private static void writeInsert(ByteArrayOutputStream out, byte[] data, int from, int to) {
+        while (from < to) {
+            int n = Math.min(MAX_INSERT, to - from);
+            out.write(n);
+            out.write(data, from, n);
+            from += n;
+        }
+    }
+
+    private static int hash(byte[] data, int start) {
+        int h = 0;
+        for (int k = start; k < start + BLOCK; k += 1) {
+            h = h * PRIME + (data[k] & 0xff);
+        }
+        return h;
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while (value >= 0x80) {
+            out.write((int) (value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    /** Reads a varint from DATA at POS[0], advancing POS[0] past it. */
+    private static long readVarint(byte[] data, int[] pos) {
+        long value = 0;
+        int shift = 0;
+        while (true) {
+            int b = data[pos[0]] & 0xff;
+            pos[0] += 1;
+            value |= (long) (b & 0x7f) << shift;
+            if (b < 0x80) {
+                return value;
+            }
+            shift += 7;
+        }
+    }
+}
@@ -0,0 +1,563 @@
+package gitlet;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Line-level comparison of files, for diff and merge. A file is seen as a sequence of
+ * lines, each with its terminating newline (the last line may have none),
+ * found by scanning its content once for newlines; the content itself stays
+ * where it is, typically a memory mapping of the stored blob.
+ *
+ * Lines at the start and end that the files have in common are matched by
+ * comparing their bytes. The rest are compared by number: each distinct
+ * line among them gets an id. Lines that occur in only one file can never be
+ * matched, so they are set aside before Myers' O(ND) algorithm, in its
+ * linear-space form, finds a longest common subsequence of the rest. As in
+ * git's xdiff, the search for the middle snake gives up after about the
+ * square root of the file sizes in steps and splits at the furthest point
+ * reached instead, so very different files take near-linear time at the cost
+ * of a matching that may not be the longest.
+ *
+ * @author zdkk
+ */
+class Diff {
+    /** The number of unchanged lines shown around each change. */
+    private static final int CONTEXT = 3;
+    private static final byte[] NO_NEWLINE =
+            "\n\\ No newline at end of file\n".getBytes(StandardCharsets.UTF_8);
+
+    /** The lines of a file. */
+    static class Lines {
+        /** A file with no lines, standing for a missing file. */
+        static final Lines EMPTY = new Lines(ByteBuffer.allocate(0));
+
+        private final ByteBuffer content;
+        /** Line i is content[starts[i], starts[i + 1]). */
+        private final int[] starts;
+
+        Lines(ByteBuffer content) {
+            this.content = content;
+            int limit = content.limit();
+            int count = 0;
+            for (int i = 0; i < limit; i += 1) {
+                if (content.get(i) == '\n') {
+                    count += 1;
+                }
+            }
+            boolean partial = limit > 0 && content.get(limit - 1) != '\n';
+            starts = new int[count + (partial ? 1 : 0) + 1];
+            int line = 1;
+            for (int i = 0; i < limit; i += 1) {
+                if (content.get(i) == '\n') {
+                    starts[line] = i + 1;
+                    line += 1;
+                }
+            }
+            starts[starts.length - 1] = limit;
+        }
+
+        int size() {
+            return starts.length - 1;
+        }
+
+        /** Writes lines FROM to TO (exclusive) to OUT as they are. */
+        void write(OutputStream out, int from, int to) throws IOException {
+            int pos = starts[from];
+            int end = starts[to];
+            if (content.hasArray()) {
+                out.write(content.array(), content.arrayOffset() + pos, end - pos);
+                return;
+            }
+            byte[] buf = new byte[Math.min(8192, end - pos)];
+            while (pos < end) {
+                int n = Math.min(buf.length, end - pos);
+                content.get(pos, buf, 0, n);
+                out.write(buf, 0, n);
+                pos += n;
+            }
+        }
+
+        /** Writes lines FROM to TO (exclusive) to OUT as write does, but ends
+         *  the last of them with a newline if it has none. */
+        void writeTerminated(OutputStream out, int from, int to) throws IOException {
+            write(out, from, to);
+            if (to > from && content.get(starts[to] - 1) != '\n') {
+                out.write('\n');
+            }
+        }
+
+        /** Returns true if lines FROM to TO of this file are the same as
+         *  lines OTHERFROM to OTHERTO of OTHER. */
+        boolean sameLines(int from, int to, Lines other, int otherFrom, int otherTo) {
+            if (to - from != otherTo - otherFrom) {
+                return false;
+            }
+            int length = starts[to] - starts[from];
+            if (length != other.starts[otherTo] - other.starts[otherFrom]) {
+                return false;
+            }
+            return content.slice(starts[from], length)
+                    .equals(other.content.slice(other.starts[otherFrom], length));
+        }
+
+        /** Writes line I to OUT after PREFIX, noting if it has no newline. */
+        private void writeLine(OutputStream out, byte prefix, int i) throws IOException {
+            out.write(prefix);
+            write(out, i, i + 1);
+            if (content.get(starts[i + 1] - 1) != '\n') {
+                out.write(NO_NEWLINE);
+            }
+        }
+
+        private int hash(int i) {
+            int h = 0;
+            for (int p = starts[i]; p < starts[i + 1]; p += 1) {
+                h = 31 * h + content.get(p);
+            }
+            return h;
+        }
+
+        private boolean sameLine(int i, Lines other, int j) {
+            return sameLines(i, i + 1, other, j, j + 1);
+        }
+    }
+
+    /**
+     * Returns, for each line of A, the line of B it is matched with in a
+     * common subsequence of A and B, or -1 if it is not matched. Matched
+     * lines are equal, and their indexes increase together. The subsequence
+     * is the longest unless the files differ too much (see Myers).
+     */
+    static int[] match(Lines a, Lines b) {
+        int[] result = new int[a.size()];
+        Arrays.fill(result, -1);
+        // Common prefixes and suffixes are matched on their bytes, so that
+        // only the lines in between get ids.
+        int lo = 0;
+        while (lo < a.size() && lo < b.size() && a.sameLine(lo, b, lo)) {
+            result[lo] = lo;
+            lo += 1;
+        }
+        int aHi = a.size();
+        int bHi = b.size();
+        while (aHi > lo && bHi > lo && a.sameLine(aHi - 1, b, bHi - 1)) {
+            aHi -= 1;
+            bHi -= 1;
+            result[aHi] = bHi;
+        }
+        LineTable table = new LineTable(aHi - lo + bHi - lo);
+        int[] middle = match(table.ids(a, lo, aHi), table.ids(b, lo, bHi));
+        for (int i = 0; i < middle.length; i += 1) {
+            if (middle[i] >= 0) {
+                result[lo + i] = lo + middle[i];
+            }
+        }
+
+        slide(result, a, b.size());
+        int[] inverse = new int[b.size()];
+        Arrays.fill(inverse, -1);
+        for (int i = 0; i < result.length; i += 1) {
+            if (result[i] >= 0) {
+                inverse[result[i]] = i;
+            }
+        }
+        slide(inverse, b, a.size());
+        Arrays.fill(result, -1);
+        for (int j = 0; j < inverse.length; j += 1) {
+            if (inverse[j] >= 0) {
+                result[inverse[j]] = j;
+            }
+        }
+        return result;
+    }
+
+    /** Moves each run of unmatched lines of FILE, as given by MATCH into a
+     *  file of OTHERSIZE lines, to a place chosen the same way whichever
+     *  equal lines it was first matched around, as git's xdiff does: next to
+     *  a change in the other file if it can be, otherwise as far down as it
+     *  goes. A change made the same way on both sides of a merge is then
+     *  found at the same place in both. */
+    private static void slide(int[] match, Lines file, int otherSize) {
+        int start = 0;
+        while (start < match.length) {
+            if (match[start] >= 0) {
+                start += 1;
+                continue;
+            }
+            int end = start;
+            while (end < match.length && match[end] < 0) {
+                end += 1;
+            }
+            int size;
+            int endNextToOther;
+            do {
+                size = end - start;
+                while (start > 0 && file.sameLine(start - 1, file, end - 1)) {
+                    match[end - 1] = match[start - 1];
+                    match[start - 1] = -1;
+                    start -= 1;
+                    end -= 1;
+                    while (start > 0 && match[start - 1] < 0) {
+                        start -= 1;
+                    }
+                }
+                endNextToOther = nextToOther(match, start, end, otherSize) ? end : -1;
+                while (end < match.length && file.sameLine(start, file, end)) {
+                    match[start] = match[end];
+                    match[end] = -1;
+                    start += 1;
+                    end += 1;
+                    while (end < match.length && match[end] < 0) {
+                        end += 1;
+                    }
+                    if (nextToOther(match, start, end, otherSize)) {
+                        endNextToOther = end;
+                    }
+                }
+            } while (end - start != size);
+            while (endNextToOther >= 0 && end > endNextToOther) {
+                match[end - 1] = match[start - 1];
+                match[start - 1] = -1;
+                start -= 1;
+                end -= 1;
+            }
+            start = end;
+        }
+    }
+
+    /** Returns true if the unmatched lines START to END of a file, as given
+     *  by MATCH into a file of OTHERSIZE lines, face unmatched lines there. */
+    private static boolean nextToOther(int[] match, int start, int end, int otherSize) {
+        int before = start == 0 ? -1 : match[start - 1];
+        int after = end == match.length ? otherSize : match[end];
+        return after - before > 1;
+    }
+
+    /**
+     * Writes the changes from A to B to OUT as the hunks of a unified diff:
+     * each group of changed lines, with up to CONTEXT unchanged lines around
+     * it, under a header giving the lines it covers in each file. Groups
+     * closer than twice CONTEXT lines share a hunk. Nothing is written if
+     * A and B are the same.
+     */
+    static void writeUnified(Lines a, Lines b, OutputStream out) throws IOException {
+        int[] match = match(a, b);
+        // Changed regions, as {aStart, aEnd, bStart, bEnd}.
+        List<int[]> changes = new ArrayList<>();
+        int i = 0;
+        int j = 0;
+        while (i < a.size() || j < b.size()) {
+            int aStart = i;
+            int bStart = j;
+            while (i < a.size() && match[i] < 0) {
+                i += 1;
+            }
+            j = i < a.size() ? match[i] : b.size();
+            if (i > aStart || j > bStart) {
+                changes.add(new int[]{aStart, i, bStart, j});
+            }
+            if (i < a.size()) {
+                i += 1;
+                j += 1;
+            }
+        }
+
+        int first = 0;
+        while (first < changes.size()) {
+            int last = first;
+            while (last + 1 < changes.size()
+                    && changes.get(last + 1)[0] - changes.get(last)[1] <= 2 * CONTEXT) {
+                last += 1;
+            }
+            int[] start = changes.get(first);
+            int[] end = changes.get(last);
+            int aFrom = Math.max(0, start[0] - CONTEXT);
+            int aTo = Math.min(a.size(), end[1] + CONTEXT);
+            int bFrom = start[2] - (start[0] - aFrom);
+            int bTo = end[3] + (aTo - end[1]);
+            out.write(("@@ -" + range(aFrom, aTo - aFrom) + " +" + range(bFrom, bTo - bFrom)
+                    + " @@\n").getBytes(StandardCharsets.UTF_8));
+            int context = aFrom;
+            for (int c = first; c <= last; c += 1) {
+                int[] change = changes.get(c);
+                for (int k = context; k < change[0]; k += 1) {
+                    a.writeLine(out, (byte) ' ', k);
+                }
+                for (int k = change[0]; k < change[1]; k += 1) {
+                    a.writeLine(out, (byte) '-', k);
+                }
+                for (int k = change[2]; k < change[3]; k += 1) {
+                    b.writeLine(out, (byte) '+', k);
+                }
+                context = change[1];
+            }
+            for (int k = context; k < aTo; k += 1) {
+                a.writeLine(out, (byte) ' ', k);
+            }
+            first = last + 1;
+        }
+    }
+
+    /** Returns the range of COUNT lines from index FROM as in a hunk header. */
+    private static String range(int from, int count) {
+        if (count == 0) {
+            return from + ",0";
+        } else if (count == 1) {
+            return Integer.toString(from + 1);
+        }
+        return (from + 1) + "," + count;
+    }
+
+    /** Returns the matching of ID sequences A and B, as for match(Lines, Lines). */
+    private static int[] match(int[] a, int[] b) {
+        int[] result = new int[a.length];
+        Arrays.fill(result, -1);
+
+        // Lines that occur in only one file can never be matched.
+        int ids = 0;
+        for (int id : a) {
+            ids = Math.max(ids, id + 1);
+        }
+        for (int id : b) {
+            ids = Math.max(ids, id + 1);
+        }
+        boolean[] inA = new boolean[ids];
+        for (int id : a) {
+            inA[id] = true;
+        }
+        boolean[] inB = new boolean[ids];
+        for (int id : b) {
+            inB[id] = true;
+        }
+        int[] aIndex = kept(a, inB);
+        int[] bIndex = kept(b, inA);
+        int[] a2 = new int[aIndex.length];
+        for (int i = 0; i < a2.length; i += 1) {
+            a2[i] = a[aIndex[i]];
+        }
+        int[] b2 = new int[bIndex.length];
+        for (int j = 0; j < b2.length; j += 1) {
+            b2[j] = b[bIndex[j]];
+        }
+
+        int[] match2 = new int[a2.length];
+        Arrays.fill(match2, -1);
+        new Myers(a2, b2, match2).compare(0, a2.length, 0, b2.length);
+        for (int i = 0; i < match2.length; i += 1) {
+            if (match2[i] >= 0) {
+                result[aIndex[i]] = bIndex[match2[i]];
+            }
+        }
+        return result;
+    }
+
+    /** Returns the indexes of the entries of IDS that are in OTHER. */
+    private static int[] kept(int[] ids, boolean[] other) {
+        int count = 0;
+        int[] result = new int[ids.length];
+        for (int i = 0; i < ids.length; i += 1) {
+            if (other[ids[i]]) {
+                result[count] = i;
+                count += 1;
+            }
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    /** Gives each distinct line among those it is shown an id, counting
+     *  from 0. Lines are kept as references to the line a distinct line was
+     *  first seen as, in an open-addressing table of ints. */
+    private static class LineTable {
+        private final int[] slots;
+        private final Lines[] files;
+        private final int[] lines;
+        private final int[] hashes;
+        private int count;
+
+        /** A table for at most CAPACITY lines. */
+        LineTable(int capacity) {
+            slots = new int[Integer.highestOneBit(Math.max(1, capacity)) * 4];
+            files = new Lines[capacity];
+            lines = new int[capacity];
+            hashes = new int[capacity];
+        }
+
+        /** Returns the ids of lines FROM to TO of FILE. */
+        int[] ids(Lines file, int from, int to) {
+            int[] result = new int[to - from];
+            for (int i = from; i < to; i += 1) {
+                result[i - from] = id(file, i);
+            }
+            return result;
+        }
+
+        private int id(Lines file, int i) {
+            int hash = file.hash(i);
+            int mask = slots.length - 1;
+            int mixed = hash * 0x9e3779b9;
+            int slot = (mixed ^ mixed >>> 16) & mask;
+            while (slots[slot] != 0) {
+                int id = slots[slot] - 1;
+                if (hashes[id] == hash && file.sameLine(i, files[id], lines[id])) {
+                    return id;
+                }
+                slot = (slot + 1) & mask;
+            }
+            files[count] = file;
+            lines[count] = i;
+            hashes[count] = hash;
+            count += 1;
+            slots[slot] = count;
+            return count - 1;
+        }
+    }
+
+    /**
+     * Myers' algorithm in linear space: the middle snake of the edit graph
+     * is found by searching forward from the start and backward from the
+     * end at once, and the two halves on either side are solved
+     * recursively. Common prefixes and suffixes are matched first.
+     */
+    private static class Myers {
+        /** The least number of steps the middle snake search may take. */
+        private static final int MIN_COST = 256;
+
+        private final int[] a;
+        private final int[] b;
+        private final int[] match;
+
+        Myers(int[] a, int[] b, int[] match) {
+            this.a = a;
+            this.b = b;
+            this.match = match;
+        }
+
+        void compare(int aLo, int aHi, int bLo, int bHi) {
+            while (aLo < aHi && bLo < bHi && a[aLo] == b[bLo]) {
+                match[aLo] = bLo;
+                aLo += 1;
+                bLo += 1;
+            }
+            while (aLo < aHi && bLo < bHi && a[aHi - 1] == b[bHi - 1]) {
+                match[aHi - 1] = bHi - 1;
+                aHi -= 1;
+                bHi -= 1;
+            }
+            if (aLo == aHi || bLo == bHi) {
+                return;
+            }
+            int[] split = middle(aLo, aHi, bLo, bHi);
+            if (split == null) {
+                return;
+            }
+            compare(aLo, split[0], bLo, split[1]);
+            compare(split[0], aHi, split[1], bHi);
+        }
+
+        /** Returns a point {x, y} on an optimal path through the edit graph
+         *  of A[ALO, AHI) and B[BLO, BHI), or null if they have nothing in
+         *  common. */
+        private int[] middle(int aLo, int aHi, int bLo, int bHi) {
+            int n = aHi - aLo;
+            int m = bHi - bLo;
+            int maxD = (n + m + 1) / 2;
+            int maxCost = Math.max(MIN_COST, (int) Math.sqrt(n + m));
+            // no diagonal beyond the step limit is ever reached
+            int offset = Math.min(maxD, maxCost + 1);
+            int length = 2 * offset + 2;
+            int[] forward = new int[length];
+            int[] backward = new int[length];
+            Arrays.fill(forward, -1);
+            Arrays.fill(backward, -1);
+            forward[offset + 1] = 0;
+            backward[offset + 1] = 0;
+            int delta = n - m;
+            boolean odd = (delta & 1) != 0;
+            int k1start = 0;
+            int k1end = 0;
+            int k2start = 0;
+            int k2end = 0;
+            for (int d = 0; d < maxD; d += 1) {
+                if (d > maxCost) {
+                    return furthest(aLo, bLo, n, m, forward, backward, offset, d - 1);
+                }
+                for (int k1 = -d + k1start; k1 <= d - k1end; k1 += 2) {
+                    int i = offset + k1;
+                    int x1 = k1 == -d || (k1 != d && forward[i - 1] < forward[i + 1])
+                            ? forward[i + 1] : forward[i - 1] + 1;
+                    int y1 = x1 - k1;
+                    while (x1 < n && y1 < m && a[aLo + x1] == b[bLo + y1]) {
+                        x1 += 1;
+                        y1 += 1;
+                    }
+                    forward[i] = x1;
+                    if (x1 > n) {
+                        k1end += 2;
+                    } else if (y1 > m) {
+                        k1start += 2;
+                    } else if (odd) {
+                        int j = offset + delta - k1;
+                        if (j >= 0 && j < length && backward[j] != -1 && x1 >= n - backward[j]) {
+                            return new int[]{aLo + x1, bLo + y1};
+                        }
+                    }
+                }
+                for (int k2 = -d + k2start; k2 <= d - k2end; k2 += 2) {
+                    int j = offset + k2;
+                    int x2 = k2 == -d || (k2 != d && backward[j - 1] < backward[j + 1])
+                            ? backward[j + 1] : backward[j - 1] + 1;
+                    int y2 = x2 - k2;
+                    while (x2 < n && y2 < m && a[aHi - x2 - 1] == b[bHi - y2 - 1]) {
+                        x2 += 1;
+                        y2 += 1;
+                    }
+                    backward[j] = x2;
+                    if (x2 > n) {
+                        k2end += 2;
+                    } else if (y2 > m) {
+                        k2start += 2;
+                    } else if (!odd) {
+                        int i = offset + delta - k2;
+                        if (i >= 0 && i < length && forward[i] != -1) {
+                            int x1 = forward[i];
+                            int y1 = offset + x1 - i;
+                            if (x1 >= n - x2) {
+                                return new int[]{aLo + x1, bLo + y1};
+                            }
+                        }
+                    }
+                }
+            }
+            return null;
+        }
+
+        /** Returns the point, forward from the start or backward from the
+         *  end, that the search reached furthest in D steps. */
+        private int[] furthest(int aLo, int bLo, int n, int m, int[] forward, int[] backward,
+                               int offset, int d) {
+            int[] best = null;
+            int bestProgress = -1;
+            for (int k = -d; k <= d; k += 2) {
+                int x1 = forward[offset + k];
+                int y1 = x1 - k;
+                if (x1 >= 0 && x1 <= n && y1 >= 0 && y1 <= m && x1 + y1 > bestProgress) {
+                    best = new int[]{aLo + x1, bLo + y1};
+                    bestProgress = x1 + y1;
+                }
+                int x2 = backward[offset + k];
+                int y2 = x2 - k;
+                if (x2 >= 0 && x2 <= n && y2 >= 0 && y2 <= m && x2 + y2 > bestProgress) {
+                    best = new int[]{aLo + n - x2, bLo + m - y2};
+                    bestProgress = x2 + y2;
+                }
+            }
+            return best;
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package gitlet;
 
+import java.util.Arrays;
+
 import static gitlet.Repository.*;
 
 /**
@@ -15,22 +17,63 @@ public class Main {
      * java gitlet.Main init
      * java gitlet.Main add hello.txt
      * ...
+     *
+     * If a daemon started with "gitlet serve" is running for the repository
+     * in the current directory, the command is run there instead (see
+     * Daemon), with the same output.
+     *
+     * With --stats among the arguments, or GITLET_TRACE=1, the command also
+     * prints its metrics as JSON on standard error (see Stats).
      */
     public static void main(String[] args) {
+        args = Stats.fromEnvironment(args);
+        if (!Daemon.forward(args)) {
+            execute(args);
+        }
+    }
+
+    /** Runs the command ARGS, printing the message of any error it reports.
+     *  Other commands on the same repository wait until it is done (see
+     *  Transaction); a daemon serving commands does not hold it up. */
+    static void execute(String[] args) {
+        args = Stats.begin(args);
+        boolean serving = args.length > 0 && args[0].equals("serve");
+        boolean locked = !serving && TRANSACTION.begin();
+        try {
+            if (locked) {
+                refresh();
+            }
+            run(args);
+        } catch (GitletException excp) {
+            System.out.println(excp.getMessage());
+        } finally {
+            if (locked) {
+                TRANSACTION.end();
+            }
+            Stats.end(args);
+        }
+    }
+
+    private static void run(String[] args) {
         if (args.length == 0) {
-            System.out.println("Please enter a command.");
-            System.exit(0);
+            throw Utils.error("Please enter a command.");
         }
 
         String firstArg = args[0];
         switch (firstArg) {
             case "init":
+                if (args.length == 2 && args[1].equals("--compress")) {
+                    init(true);
+                    break;
+                }
                 checkargs(args, 1);
                 init();
                 break;
             case "add":
-                checkargs(args, 2);
-                add(args[1]);
+                if (args.length < 2) {
+                    throw Utils.error("Incorrect operands.");
+                }
+                add(Arrays.copyOfRange(args, 1, args.length));
                 break;
             case "commit":
                  checkargs(args, 2);
@@ -56,6 +99,18 @@ public class Main {
                  checkargs(args, 1);
                  status();
                  break;
+            case "diff":
+                 if (args.length == 1) {
+                     diff();
+                 } else if (args.length == 2
+                         && (args[1].equals("--staged") || args[1].equals("--cached"))) {
+                     diffStaged();
+                 } else if (args.length == 3) {
+                     diff(args[1], args[2]);
+                 } else {
+                     throw Utils.error("Incorrect operands.");
+                 }
+                 break;
             case "checkout":
                  if (args.length == 2) {
                      checkout(args[1]);
@@ -64,8 +119,7 @@ public class Main {
                  } else if (args.length == 4) {
                      checkout(args[1], args[2], args[3]);
                  } else {
-                     System.out.println("Incorrect operands.");
-                     System.exit(0);
+                     throw Utils.error("Incorrect operands.");
                  }
                  break;
              case "branch":
@@ -84,18 +138,74 @@ public class Main {
                  checkargs(args, 2);
                  merge(args[1]);
                  break;
+             case "clone":
+                 clone(args);
+                 break;
+             case "add-remote":
+                 checkargs(args, 3);
+                 addRemote(args[1], args[2]);
+                 break;
+             case "rm-remote":
+                 checkargs(args, 2);
+                 rmRemote(args[1]);
+                 break;
+             case "push":
+                 checkargs(args, 3);
+                 push(args[1], args[2]);
+                 break;
+             case "fetch":
+                 checkargs(args, 3);
+                 fetch(args[1], args[2]);
+                 break;
+             case "pull":
+                 checkargs(args, 3);
+                 pull(args[1], args[2]);
+                 break;
+             case "gc":
+             case "repack":
+                 checkargs(args, 1);
+                 gc();
+                 break;
+             case "migrate":
+                 checkargs(args, 1);
+                 migrate();
+                 break;
+             case "serve":
+                 if (args.length == 2 && args[1].equals("--stop")) {
+                     throw Utils.error("No daemon is running.");
+                 }
+                 checkargs(args, 1);
+                 serve();
+                 break;
             default:
-                System.out.println("No command with that name exists.");
-                System.exit(0);
+                throw Utils.error("No command with that name exists.");
         }
+    }
 
-//        Repository.debug();
+    /** Runs "clone PATH [--depth N] [--blobless]". */
+    private static void clone(String[] args) {
+        if (args.length < 2) {
+            throw Utils.error("Incorrect operands.");
+        }
+        int depth = 0;
+        boolean blobless = false;
+        for (int i = 2; i < args.length; i += 1) {
+            if (args[i].equals("--blobless")) {
+                blobless = true;
+            } else if (args[i].equals("--depth") && i + 1 < args.length
+                    && args[i + 1].matches("[1-9][0-9]{0,8}")) {
+                depth = Integer.parseInt(args[i + 1]);
+                i += 1;
+            } else {
+                throw Utils.error("Incorrect operands.");
+            }
+        }
+        Repository.clone(args[1], depth, blobless);
     }
 
     private static void checkargs(String[] args, int num) {
         if (args.length != num) {
-            System.out.println("Incorrect operands.");
-            System.exit(0);
+            throw Utils.error("Incorrect operands.");
         }
     }
 }
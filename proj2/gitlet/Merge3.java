@@ -0,0 +1,91 @@
+package gitlet;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Three-way merge of the lines of a file, as in diff3. The base is matched
+ * against each side (see Diff); a base line matched in both sides, at the
+ * current position of each, is stable and is copied. Between stable lines,
+ * a region changed on one side only takes that side, a region changed the
+ * same way on both takes either, and a region changed differently on the
+ * two sides is a conflict, written as
+ *
+ * <<<<<<< HEAD
+ * (the lines of the current branch)
+ * =======
+ * (the lines of the given branch)
+ * >>>>>>>
+ *
+ * A side whose last line has no newline gets one inside a conflict, so
+ * each marker starts a line of its own.
+ *
+ * The result is written out as it is produced, so only the line offsets
+ * of the three files are held in memory.
+ *
+ * @author zdkk
+ */
+class Merge3 {
+    private static final byte[] OURS = "<<<<<<< HEAD\n".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] SEPARATOR = "=======\n".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] THEIRS = ">>>>>>>\n".getBytes(StandardCharsets.UTF_8);
+
+    /** Writes the merge of OURS and THEIRS, both changed from BASE, to OUT.
+     *  Returns true if there was a conflict. */
+    static boolean merge(Diff.Lines base, Diff.Lines ours, Diff.Lines theirs, OutputStream out)
+            throws IOException {
+        int[] toOurs = Diff.match(base, ours);
+        int[] toTheirs = Diff.match(base, theirs);
+
+        boolean conflict = false;
+        int o = 0;
+        int a = 0;
+        int b = 0;
+        while (true) {
+            int next = o;
+            while (next < base.size() && (toOurs[next] < 0 || toTheirs[next] < 0)) {
+                next += 1;
+            }
+            if (next == base.size()) {
+                conflict |= chunk(base, o, base.size(), ours, a, ours.size(),
+                        theirs, b, theirs.size(), out);
+                return conflict;
+            }
+            int nextA = toOurs[next];
+            int nextB = toTheirs[next];
+            if (next == o && nextA == a && nextB == b) {
+                base.write(out, o, o + 1);
+                o += 1;
+                a += 1;
+                b += 1;
+                continue;
+            }
+            conflict |= chunk(base, o, next, ours, a, nextA, theirs, b, nextB, out);
+            o = next;
+            a = nextA;
+            b = nextB;
+        }
+    }
+
+    /** Writes the merge of one region between stable lines. Returns true
+     *  if it is a conflict. */
+    private static boolean chunk(Diff.Lines base, int o, int oEnd, Diff.Lines ours, int a,
+                                 int aEnd, Diff.Lines theirs, int b, int bEnd,
+                                 OutputStream out) throws IOException {
+        if (ours.sameLines(a, aEnd, base, o, oEnd)) {
+            theirs.write(out, b, bEnd);
+        } else if (theirs.sameLines(b, bEnd, base, o, oEnd)
+                || ours.sameLines(a, aEnd, theirs, b, bEnd)) {
+            ours.write(out, a, aEnd);
+        } else {
+            out.write(OURS);
+            ours.writeTerminated(out, a, aEnd);
+            out.write(SEPARATOR);
+            theirs.writeTerminated(out, b, bEnd);
+            out.write(THEIRS);
+            return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,70 @@
+package gitlet;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A least-recently-used cache of decoded objects, keyed by SHA-1 and bounded
+ * by the total estimated size of its values rather than their number, so a
+ * few large objects cannot pin much more memory than many small ones.
+ * Objects are immutable once stored, so a cached value never goes stale,
+ * except when migrate rewrites objects under the same SHA-1 (see clear).
+ * Its methods are synchronized, as a parallel checkout reads objects from
+ * several threads.
+ *
+ * @author zdkk
+ */
+class ObjectCache<V> {
+    private final long capacity;
+    private final LinkedHashMap<String, V> values = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, Long> weights = new HashMap<>();
+    private long size;
+
+    /** A cache holding values of at most CAPACITY bytes in total. */
+    ObjectCache(long capacity) {
+        this.capacity = capacity;
+    }
+
+    /** Returns the value cached for SHA1, or null, counting a hit or a miss
+     *  (see Stats). */
+    synchronized V get(String sha1) {
+        V value = values.get(sha1);
+        Stats.count(value == null ? Stats.Counter.CACHE_MISSES : Stats.Counter.CACHE_HITS);
+        return value;
+    }
+
+    /** Caches VALUE for SHA1, its size estimated at WEIGHT bytes, evicting
+     *  the least recently used values until the cache fits. A value larger
+     *  than the whole cache is not kept. */
+    synchronized void put(String sha1, V value, long weight) {
+        if (weight > capacity) {
+            return;
+        }
+        Long old = weights.put(sha1, weight);
+        if (old != null) {
+            size -= old;
+        }
+        values.put(sha1, value);
+        size += weight;
+        Iterator<String> eldest = values.keySet().iterator();
+        while (size > capacity) {
+            String evicted = eldest.next();
+            eldest.remove();
+            size -= weights.remove(evicted);
+        }
+    }
+
+    /** Drops every cached value. */
+    synchronized void clear() {
+        values.clear();
+        weights.clear();
+        size = 0;
+    }
+
+    /** Returns the estimated size of the cached values, in bytes. */
+    synchronized long size() {
+        return size;
+    }
+}
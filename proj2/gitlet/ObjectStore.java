@@ -0,0 +1,734 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * The object database of a gitlet repository. Objects live either as loose
+ * files named by their SHA-1 in the objects directory or inside a pack;
+ * every read goes through the pack indexes first and falls back to the
+ * loose file.
+ *
+ * The repository format, recorded at init, decides how new objects are
+ * written: as they are, or zlib-compressed behind a Utils.DEFLATED marker
+ * byte. Readers look at that first byte, so both kinds can be mixed.
+ *
+ * Every object written is also recorded, with its type, in a PrefixIndex,
+ * which resolves abbreviated ids.
+ *
+ * Repack stores older versions of a file as deltas (see Delta) against the
+ * next newer version, in chains of at most MAX_CHAIN deltas. Reads rebuild
+ * them transparently; the bases they were rebuilt from are kept in a small
+ * cache, since reading one version usually means reading the next.
+ *
+ * Decoded commits and blobs are kept in an LRU ObjectCache, since a command
+ * often reads the same commit several times (the current commit, parents
+ * walked by log and merge).
+ *
+ * A blobless clone (see Remote) has all commits and trees but no blobs.
+ * Its .gitlet/promisor file names the remote it was cloned from, and a blob
+ * that is read and missing is copied from there as a loose object on first
+ * use; prefetch copies the blobs a command is about to read in one pack.
+ *
+ * @author zdkk
+ */
+class ObjectStore {
+    /** Objects are written uncompressed. Repositories without a format file have this format. */
+    static final int FORMAT_PLAIN = 1;
+    /** Objects are written deflated. */
+    static final int FORMAT_DEFLATE = 2;
+
+    /** Object types, as recorded in the prefix index. */
+    static final byte TYPE_BLOB = 1;
+    static final byte TYPE_COMMIT = 2;
+    static final byte TYPE_TREE = 3;
+
+    /** Deflated objects are written and inflated through buffers of this size. */
+    private static final int BUFFER_SIZE = 64 * 1024;
+    /** Blobs smaller than this are not worth storing as deltas. */
+    private static final int MIN_DELTA_SIZE = 512;
+    /** The longest chain of deltas repack builds before storing a version whole. */
+    private static final int MAX_CHAIN = 16;
+    /** How many bytes of rebuilt delta bases are kept. */
+    private static final long DELTA_CACHE_BYTES = 32L * 1024 * 1024;
+    /** How many bytes of decoded commits and blobs are kept. */
+    private static final long OBJECT_CACHE_BYTES = 16L * 1024 * 1024;
+    /** Estimated size of a decoded object beyond its stored bytes. */
+    private static final int OBJECT_OVERHEAD = 128;
+    /** How many bytes of file maps of whole trees are kept. */
+    private static final long FILES_CACHE_BYTES = 16L * 1024 * 1024;
+    /** Estimated size of one entry of a file map beyond the chars of its path. */
+    private static final int FILE_ENTRY_OVERHEAD = 160;
+
+    private final File objectsDir;
+    private final File packDir;
+    private final File formatFile;
+    private final File promisorFile;
+    private final PrefixIndex prefixIndex;
+    private final Transaction transaction;
+    private final ObjectWriter writer;
+    private int format;
+    private List<Pack> packs;
+    private ObjectStore promisor;
+    private final ObjectCache<byte[]> deltaBases = new ObjectCache<>(DELTA_CACHE_BYTES);
+    private final ObjectCache<Object> objects = new ObjectCache<>(OBJECT_CACHE_BYTES);
+    private final ObjectCache<Map<String, String>> files = new ObjectCache<>(FILES_CACHE_BYTES);
+
+    /** The object store of repository GITLETDIR, whose writes are made
+     *  durable by TRANSACTION. */
+    ObjectStore(File gitletDir, Transaction transaction) {
+        this.objectsDir = Utils.join(gitletDir, "objects");
+        this.packDir = Utils.join(objectsDir, "pack");
+        this.formatFile = Utils.join(gitletDir, "format");
+        this.promisorFile = Utils.join(gitletDir, "promisor");
+        this.prefixIndex = new PrefixIndex(gitletDir);
+        this.transaction = transaction;
+        this.writer = new ObjectWriter(objectsDir, this, transaction);
+    }
+
+    /** Records FORMAT as the format of this (new) repository. */
+    void initFormat(int format) {
+        this.format = format;
+        transaction.replace(formatFile, Integer.toString(format));
+    }
+
+    int format() {
+        if (format == 0) {
+            format = formatFile.exists()
+                    ? Integer.parseInt(Utils.readContentsAsString(formatFile).trim())
+                    : FORMAT_PLAIN;
+        }
+        return format;
+    }
+
+    /** Returns a stream that writes an object file to OUT in the format of
+     *  this repository. Closing it closes OUT. */
+    OutputStream encode(OutputStream out) throws IOException {
+        if (format() == FORMAT_DEFLATE) {
+            out.write(Utils.DEFLATED);
+            return new DeflaterOutputStream(out, new Deflater(Deflater.BEST_SPEED), BUFFER_SIZE);
+        }
+        return out;
+    }
+
+    /** Writes DATA as the loose object SHA1 of type TYPE, unless it is
+     *  stored already. */
+    void write(String sha1, byte type, byte[] data) {
+        writer.write(sha1, data);
+        register(sha1, type);
+    }
+
+    /** Returns the writer that new objects go through. */
+    ObjectWriter writer() {
+        return writer;
+    }
+
+    /** Records in the prefix index that object SHA1, already written, has
+     *  type TYPE. Blobs fetched on reading (see fetchMissing) may be
+     *  registered from several threads at once. */
+    synchronized void register(String sha1, byte type) {
+        prefixIndex().add(sha1, type);
+    }
+
+    /**
+     * Stores OBJECTS, a map from SHA-1 to type, as one new pack whose bytes
+     * are read from SOURCE one object at a time, in the order of the map,
+     * and records their types. The pack is only seen by readers once it is
+     * complete, and is on disk before the next ref is replaced.
+     */
+    void receive(Map<String, Byte> objects, Pack.Source source) {
+        if (objects.isEmpty()) {
+            return;
+        }
+        if (!packDir.exists()) {
+            packDir.mkdirs();
+        }
+        Map<String, Long> lastModified = new HashMap<>();
+        long now = System.currentTimeMillis();
+        for (String name : objects.keySet()) {
+            lastModified.put(name, now);
+        }
+        File index = Pack.write(packDir, new ArrayList<>(objects.keySet()), lastModified, source);
+        transaction.written(Pack.packFile(index));
+        transaction.written(index);
+        Stats.count(Stats.Counter.OBJECT_WRITES, objects.size());
+        Stats.count(Stats.Counter.OBJECT_BYTES_WRITTEN, Pack.packFile(index).length());
+        packs = null;
+        for (Map.Entry<String, Byte> object : objects.entrySet()) {
+            register(object.getKey(), object.getValue());
+        }
+    }
+
+    /**
+     * Returns the SHA-1s of objects of type TYPE whose ids start with PREFIX,
+     * at most LIMIT of them. This is a binary search of the prefix index and
+     * reads no objects.
+     */
+    List<String> resolve(String prefix, byte type, int limit) {
+        return prefixIndex().find(prefix, type, limit);
+    }
+
+    /** Returns the commit SHA1. */
+    Commit readCommit(String sha1) {
+        Commit commit = (Commit) objects.get(sha1);
+        if (commit == null) {
+            byte[] data = readDecoded(sha1);
+            commit = Commit.decode(data);
+            objects.put(sha1, commit, data.length + OBJECT_OVERHEAD);
+        }
+        return commit;
+    }
+
+    /** Returns the stored bytes of object SHA1, as they would appear in its
+     *  loose file. A delta is rebuilt and encoded in the repository format. */
+    byte[] readRaw(String sha1) {
+        byte[] data = readStored(sha1);
+        if (!Delta.isDelta(data)) {
+            return data;
+        }
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        try (OutputStream out = encode(result)) {
+            out.write(undelta(data));
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        return result.toByteArray();
+    }
+
+    /** Returns the bytes of object SHA1, decompressed if it is stored
+     *  deflated and rebuilt if it is stored as a delta. */
+    byte[] readDecoded(String sha1) {
+        return decode(readStored(sha1));
+    }
+
+    /** Returns every file of tree ROOT, as an unmodifiable map from path to
+     *  blob SHA-1 (see Tree.flatten). The map is cached apart from the
+     *  objects, weighed by its own size, so that caching the commits that
+     *  name a tree does not pin it. */
+    Map<String, String> readFiles(String root) {
+        Map<String, String> result = files.get(root);
+        if (result == null) {
+            result = Collections.unmodifiableMap(Tree.flatten(root, this));
+            long weight = 0;
+            for (String path : result.keySet()) {
+                weight += 2L * path.length() + FILE_ENTRY_OVERHEAD;
+            }
+            files.put(root, result, weight);
+        }
+        return result;
+    }
+
+    /** Returns the blob SHA1. */
+    Blob readBlob(String sha1) {
+        Blob blob = (Blob) objects.get(sha1);
+        if (blob == null) {
+            byte[] data = readDecoded(sha1);
+            blob = Blob.contentOffset(ByteBuffer.wrap(data)) < 0
+                    ? Utils.deserialize(data, Blob.class) : Blob.fromStored(sha1, data);
+            objects.put(sha1, blob, data.length + OBJECT_OVERHEAD);
+        }
+        return blob;
+    }
+
+    /** Returns the file content held by blob SHA1, read from a memory
+     *  mapping of the stored object. */
+    byte[] readBlobContent(String sha1) {
+        Location location = locate(sha1);
+        try (FileChannel in = FileChannel.open(location.file.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer map = in.map(FileChannel.MapMode.READ_ONLY,
+                    location.offset, location.length);
+            if (isDeflated(map) || isDelta(map)) {
+                byte[] data = readDecoded(sha1);
+                int start = Blob.contentOffset(ByteBuffer.wrap(data));
+                if (start < 0) {
+                    return readBlob(sha1).getLegacyBytes();
+                }
+                return Arrays.copyOfRange(data, start, data.length);
+            }
+            int start = Blob.contentOffset(map);
+            if (start < 0) {
+                return readBlob(sha1).getLegacyBytes();
+            }
+            byte[] result = new byte[(int) location.length - start];
+            map.get(start, result);
+            return result;
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Returns the file content held by blob SHA1 as a buffer. Blobs stored
+     *  plain are memory-mapped rather than read onto the heap. */
+    ByteBuffer mapBlobContent(String sha1) {
+        Location location = locate(sha1);
+        try (FileChannel in = FileChannel.open(location.file.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer map = in.map(FileChannel.MapMode.READ_ONLY,
+                    location.offset, location.length);
+            int start = Blob.contentOffset(map);
+            if (isDeflated(map) || isDelta(map) || start < 0) {
+                return ByteBuffer.wrap(readBlobContent(sha1));
+            }
+            return map.slice(start, map.limit() - start);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /**
+     * Writes the file content held by blob SHA1 to TARGET. The stored object
+     * is memory-mapped to find where its content starts, and the content is
+     * then handed to TARGET with FileChannel.transferTo, so it is never
+     * copied onto the Java heap or deserialized. Deflated blobs are
+     * inflated on the way instead, and deltas are rebuilt in memory.
+     */
+    void copyBlobTo(String sha1, File target) {
+        Location location = locate(sha1);
+        try (FileChannel in = FileChannel.open(location.file.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer map = in.map(FileChannel.MapMode.READ_ONLY,
+                    location.offset, location.length);
+            if (isDelta(map)) {
+                Utils.writeContents(target, readBlobContent(sha1));
+                return;
+            }
+            if (isDeflated(map)) {
+                in.position(location.offset + 1);
+                InputStream blob = new InflaterInputStream(Channels.newInputStream(in),
+                        new Inflater(), BUFFER_SIZE);
+                if (!Blob.skipHeader(blob)) {
+                    Utils.writeContents(target, readBlob(sha1).getLegacyBytes());
+                    return;
+                }
+                Files.copy(blob, target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                return;
+            }
+            int start = Blob.contentOffset(map);
+            if (start < 0) {
+                Utils.writeContents(target, readBlob(sha1).getLegacyBytes());
+                return;
+            }
+            try (FileChannel out = FileChannel.open(target.toPath(), StandardOpenOption.WRITE,
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                long pos = location.offset + start;
+                long end = location.offset + location.length;
+                while (pos < end) {
+                    pos += in.transferTo(pos, end - pos, out);
+                }
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Returns the commit SHA1, or null if object SHA1 is not a commit.
+     *  Blobs in the stored format and trees are recognized without
+     *  deserializing them. */
+    Commit readCommitOrNull(String sha1) {
+        Object cached = objects.get(sha1);
+        if (cached != null) {
+            return cached instanceof Commit ? (Commit) cached : null;
+        }
+        byte[] data = readDecoded(sha1);
+        if (Commit.isEncoded(data)) {
+            Commit commit = Commit.decode(data);
+            objects.put(sha1, commit, data.length + OBJECT_OVERHEAD);
+            return commit;
+        }
+        if (Blob.contentOffset(ByteBuffer.wrap(data)) >= 0 || Tree.isTree(data)) {
+            return null;
+        }
+        Serializable obj = Utils.deserialize(data, Serializable.class);
+        if (!(obj instanceof Commit)) {
+            return null;
+        }
+        objects.put(sha1, obj, data.length + OBJECT_OVERHEAD);
+        return (Commit) obj;
+    }
+
+    /** Returns the type of object SHA1, found by reading it. */
+    private byte readType(String sha1) {
+        if (Tree.isTree(readDecoded(sha1))) {
+            return TYPE_TREE;
+        }
+        return readCommitOrNull(sha1) != null ? TYPE_COMMIT : TYPE_BLOB;
+    }
+
+    boolean contains(String sha1) {
+        for (Pack pack : packs()) {
+            if (pack.contains(sha1)) {
+                return true;
+            }
+        }
+        return Utils.join(objectsDir, sha1).isFile();
+    }
+
+    /** Returns the SHA-1s of all objects, packed and loose, in sorted order. */
+    List<String> names() {
+        Set<String> result = new TreeSet<>(looseNames());
+        for (Pack pack : packs()) {
+            result.addAll(pack.names());
+        }
+        return new ArrayList<>(result);
+    }
+
+    /**
+     * Moves every loose object and every existing pack into a single new pack,
+     * then removes the loose files and old packs it replaces. Objects are laid
+     * out oldest first, and blobs are delta-compressed (see deltify).
+     */
+    void repack() {
+        repack(Collections.emptyMap());
+    }
+
+    /**
+     * Rewrites every commit and blob still serialized by an older version in
+     * the current format, and every commit stored with a file map with a
+     * tree instead (see Commit.withTree), under the same SHA-1, and
+     * repacks. Returns the number of objects rewritten.
+     *
+     * Older versions hashed the length of a file in chars rather than
+     * bytes, so a file with non-ASCII text has another SHA-1 now (see
+     * Blob.currentSha1). Such a blob is also stored under its current
+     * SHA-1, which the trees of the rewritten commits name instead, so the
+     * file is not taken as modified afterwards; RENAMED gets each old SHA-1
+     * mapped to the new one. The old object stays, for anything else that
+     * names it.
+     */
+    int migrate(Map<String, String> renamed) {
+        Map<String, byte[]> rewritten = new HashMap<>();
+        List<Commit> commits = new ArrayList<>();
+        for (String name : names()) {
+            byte[] data = readDecoded(name);
+            if (Blob.contentOffset(ByteBuffer.wrap(data)) >= 0 || Tree.isTree(data)) {
+                continue;
+            }
+            if (Commit.isEncoded(data)) {
+                Commit commit = Commit.decode(data);
+                if (commit.storedTree() == null && !commit.getBlobs().isEmpty()) {
+                    commits.add(commit);
+                }
+                continue;
+            }
+            Serializable obj = Utils.deserialize(data, Serializable.class);
+            if (obj instanceof Commit) {
+                commits.add((Commit) obj);
+                continue;
+            }
+            Blob blob = (Blob) obj;
+            byte[] header = Blob.header(blob.getFileName());
+            byte[] content = blob.getLegacyBytes();
+            rewritten.put(name, encoded(header, content));
+            String sha1 = blob.currentSha1();
+            if (!sha1.equals(name)) {
+                writer.write(sha1, header, content);
+                register(sha1, TYPE_BLOB);
+                renamed.put(name, sha1);
+            }
+        }
+        for (Commit commit : commits) {
+            rewritten.put(commit.getSha1(), encoded(commit.withTree(this, renamed).encode()));
+        }
+        objects.clear();
+        files.clear();
+        repack(rewritten);
+        return rewritten.size();
+    }
+
+    /** Returns the concatenation of PARTS as stored in the format of this
+     *  repository. */
+    private byte[] encoded(byte[]... parts) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (OutputStream out = encode(bytes)) {
+            for (byte[] part : parts) {
+                out.write(part);
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        return bytes.toByteArray();
+    }
+
+    /** Repacks, storing the objects in REWRITTEN with the stored bytes given there. */
+    private void repack(Map<String, byte[]> rewritten) {
+        prefixIndex().compact();
+        List<String> loose = looseNames();
+        List<Pack> oldPacks = packs();
+        if (loose.isEmpty() && oldPacks.size() <= 1 && rewritten.isEmpty()) {
+            return;
+        }
+        if (!packDir.exists()) {
+            packDir.mkdir();
+        }
+
+        Map<String, Long> lastModified = new HashMap<>();
+        for (Pack pack : oldPacks) {
+            for (String name : pack.names()) {
+                lastModified.putIfAbsent(name, pack.lastModified(name));
+            }
+        }
+        for (String name : loose) {
+            lastModified.putIfAbsent(name, Utils.join(objectsDir, name).lastModified());
+        }
+        List<String> names = new ArrayList<>(lastModified.keySet());
+        names.sort(Comparator.comparing(lastModified::get));
+        Map<String, byte[]> stored = deltify(names);
+        stored.putAll(rewritten);
+        File newIndex = Pack.write(packDir, names, lastModified,
+                name -> stored.containsKey(name) ? stored.get(name) : readRaw(name));
+        // the new pack must be on disk before what it replaces is deleted
+        transaction.written(Pack.packFile(newIndex));
+        transaction.written(newIndex);
+        transaction.sync();
+
+        for (Pack pack : oldPacks) {
+            if (!pack.getIndexFile().equals(newIndex)) {
+                pack.delete();
+            }
+        }
+        for (String name : loose) {
+            Utils.join(objectsDir, name).delete();
+        }
+        packs = null;
+    }
+
+    /**
+     * Returns the deltas to store for the blobs among NAMES, which are in
+     * order of age, keyed by blob. As in git, the newest version of each
+     * file is kept whole, since it is the one read most, and each older
+     * version becomes a delta against the next newer one, unless that would
+     * make a chain longer than MAX_CHAIN or save less than half the size.
+     */
+    private Map<String, byte[]> deltify(List<String> names) {
+        Map<String, List<String>> versions = new HashMap<>();
+        for (String name : names) {
+            byte[] data = readDecoded(name);
+            if (data.length >= MIN_DELTA_SIZE && Blob.contentOffset(ByteBuffer.wrap(data)) >= 0) {
+                versions.computeIfAbsent(Blob.fromStored(name, data).getFileName(),
+                        k -> new ArrayList<>()).add(name);
+            }
+        }
+        Map<String, byte[]> deltas = new HashMap<>();
+        for (List<String> shas : versions.values()) {
+            String base = shas.get(shas.size() - 1);
+            byte[] baseData = readDecoded(base);
+            int depth = 0;
+            for (int i = shas.size() - 2; i >= 0; i -= 1) {
+                byte[] data = readDecoded(shas.get(i));
+                byte[] delta = depth < MAX_CHAIN ? Delta.create(base, baseData, data) : null;
+                if (delta != null && delta.length < data.length / 2) {
+                    deltas.put(shas.get(i), delta);
+                    depth += 1;
+                } else {
+                    depth = 0;
+                }
+                base = shas.get(i);
+                baseData = data;
+            }
+        }
+        return deltas;
+    }
+
+    /** Returns the stored bytes of object SHA1, which may be a delta if it is packed. */
+    private byte[] readStored(String sha1) {
+        Stats.count(Stats.Counter.OBJECT_READS);
+        for (Pack pack : packs()) {
+            byte[] data = pack.read(sha1);
+            if (data != null) {
+                Stats.count(Stats.Counter.OBJECT_BYTES_READ, data.length);
+                return data;
+            }
+        }
+        File file = Utils.join(objectsDir, sha1);
+        if (!file.isFile()) {
+            fetchMissing(sha1);
+        }
+        byte[] data = Utils.readContents(file);
+        Stats.count(Stats.Counter.OBJECT_BYTES_READ, data.length);
+        return data;
+    }
+
+    /**
+     * Copies the blobs among SHA1S that this blobless clone lacks from its
+     * promisor remote, as one pack, so that reading them later does not
+     * fetch them one at a time. Does nothing in a complete repository.
+     */
+    void prefetch(Collection<String> sha1s) {
+        ObjectStore source = promisor();
+        if (source == null) {
+            return;
+        }
+        Map<String, Byte> missing = new LinkedHashMap<>();
+        for (String sha1 : sha1s) {
+            if (!contains(sha1)) {
+                missing.put(sha1, TYPE_BLOB);
+            }
+        }
+        receive(missing, source::readRaw);
+    }
+
+    /** Copies blob SHA1, which this repository lacks, from the promisor
+     *  remote as a loose object. Exits with a message if it cannot. */
+    private void fetchMissing(String sha1) {
+        ObjectStore source = promisor();
+        if (source == null) {
+            return;
+        }
+        if (!source.contains(sha1)) {
+            throw Utils.error("Object %s is missing, and the remote it was cloned from "
+                    + "does not have it.", sha1);
+        }
+        File temp = writer.newTemp();
+        Utils.writeContents(temp, (Object) source.readRaw(sha1));
+        writer.install(temp, sha1);
+        register(sha1, TYPE_BLOB);
+    }
+
+    /** Returns the object store of the remote this blobless clone was cloned
+     *  from, or null if this repository is not one. */
+    private synchronized ObjectStore promisor() {
+        if (promisor == null && promisorFile.exists()) {
+            File workingDir = promisorFile.getParentFile().getParentFile();
+            File remoteFile = Utils.join(promisorFile.getParentFile(), "remotes",
+                    Utils.readContentsAsString(promisorFile));
+            if (!remoteFile.isFile()) {
+                throw Utils.error("The remote this repository was cloned from was removed.");
+            }
+            File dir = new File(Utils.readContentsAsString(remoteFile));
+            if (!dir.isAbsolute()) {
+                dir = new File(workingDir, dir.getPath());
+            }
+            if (!dir.isDirectory()) {
+                throw Utils.error("Remote directory not found.");
+            }
+            promisor = new ObjectStore(dir, new Transaction(dir));
+        }
+        return promisor;
+    }
+
+    /** Returns the decoded bytes of an object whose stored bytes are DATA. */
+    private byte[] decode(byte[] data) {
+        return Delta.isDelta(data) ? undelta(data) : Utils.decode(data);
+    }
+
+    /** Rebuilds the object stored as delta DATA, through the cache of bases. */
+    private byte[] undelta(byte[] data) {
+        String base = Delta.base(data);
+        byte[] baseData = deltaBases.get(base);
+        if (baseData == null) {
+            baseData = readDecoded(base);
+            deltaBases.put(base, baseData, baseData.length);
+        }
+        return Delta.apply(baseData, data);
+    }
+
+    private static boolean isDeflated(ByteBuffer stored) {
+        return stored.limit() > 0 && stored.get(0) == Utils.DEFLATED;
+    }
+
+    private static boolean isDelta(ByteBuffer stored) {
+        return stored.limit() > 0 && stored.get(0) == Delta.MARKER;
+    }
+
+    /** Where the stored bytes of an object are: a region of a loose file or a pack. */
+    private static class Location {
+        private final File file;
+        private final long offset;
+        private final long length;
+
+        Location(File file, long offset, long length) {
+            this.file = file;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private Location locate(String sha1) {
+        Stats.count(Stats.Counter.OBJECT_READS);
+        for (Pack pack : packs()) {
+            long[] location = pack.locate(sha1);
+            if (location != null) {
+                Stats.count(Stats.Counter.OBJECT_BYTES_READ, location[1]);
+                return new Location(pack.getPackFile(), location[0], location[1]);
+            }
+        }
+        File file = Utils.join(objectsDir, sha1);
+        if (!file.isFile()) {
+            fetchMissing(sha1);
+        }
+        if (!file.isFile()) {
+            throw new IllegalArgumentException("no such object: " + sha1);
+        }
+        Stats.count(Stats.Counter.OBJECT_BYTES_READ, file.length());
+        return new Location(file, 0, file.length());
+    }
+
+    /** Returns the prefix index, building it first from the objects
+     *  themselves in repositories created before it existed. */
+    private PrefixIndex prefixIndex() {
+        if (!prefixIndex.exists()) {
+            Map<String, Byte> types = new HashMap<>();
+            for (String name : names()) {
+                types.put(name, readType(name));
+            }
+            prefixIndex.build(types);
+        }
+        return prefixIndex;
+    }
+
+    /** Drops what is loaded of the packs, the prefix index, the format and
+     *  the promisor remote if another process may have changed them, so
+     *  that a process running many commands sees what other processes
+     *  wrote in between. Objects never change, so cached ones are kept. */
+    synchronized void refresh() {
+        format = 0;
+        promisor = null;
+        prefixIndex.refresh();
+        if (packs != null) {
+            List<String> names = new ArrayList<>();
+            for (Pack pack : packs) {
+                names.add(pack.getIndexFile().getName());
+            }
+            if (!names.equals(Pack.indexNames(packDir))) {
+                packs = null;
+            }
+        }
+    }
+
+    /** Returns the packs, opening them on first use; objects may be stored
+     *  from several threads at once. */
+    private synchronized List<Pack> packs() {
+        if (packs == null) {
+            packs = Pack.openAll(packDir);
+        }
+        return packs;
+    }
+
+    private List<String> looseNames() {
+        List<String> result = new ArrayList<>();
+        List<String> files = Utils.plainFilenamesIn(objectsDir);
+        if (files == null) {
+            return result;
+        }
+        for (String name : files) {
+            if (name.length() == Utils.UID_LENGTH) {
+                result.add(name);
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,108 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Writes new objects into the objects directory, each at most once. Since
+ * an object is named by the hash of its contents, one that is already
+ * stored, loose or packed, is never written again.
+ *
+ * An object is written to a temporary file that is renamed to its SHA-1,
+ * so readers never see part of one. Threads storing objects at the same
+ * time, such as a parallel add, take one of STRIPES locks chosen by the
+ * first six bits of the SHA-1 around the check and the rename: of several
+ * threads storing the same content, the first writes it and the others
+ * find it there, while threads storing different objects seldom wait for
+ * each other.
+ *
+ * @author zdkk
+ */
+class ObjectWriter {
+    /** Files up to this size are read whole and hashed before anything is
+     *  written, so storing one that is already stored writes nothing, as
+     *  git does below core.bigFileThreshold. Larger files are written out
+     *  as they are hashed, and the copy dropped if it turns out to exist. */
+    static final int IN_MEMORY_LIMIT = 1024 * 1024;
+    private static final int STRIPES = 64;
+
+    private final File objectsDir;
+    private final ObjectStore store;
+    private final Transaction transaction;
+    private final Object[] locks = new Object[STRIPES];
+
+    ObjectWriter(File objectsDir, ObjectStore store, Transaction transaction) {
+        this.objectsDir = objectsDir;
+        this.store = store;
+        this.transaction = transaction;
+        for (int i = 0; i < STRIPES; i += 1) {
+            locks[i] = new Object();
+        }
+    }
+
+    /** Writes the concatenation of PARTS, encoded in the format of the
+     *  repository, as object SHA1 unless it is stored already. Returns true
+     *  if it was written. */
+    boolean write(String sha1, byte[]... parts) {
+        synchronized (lock(sha1)) {
+            if (store.contains(sha1)) {
+                return false;
+            }
+            File temp = newTemp();
+            try (OutputStream out = store.encode(
+                    new BufferedOutputStream(new FileOutputStream(temp)))) {
+                for (byte[] part : parts) {
+                    out.write(part);
+                }
+            } catch (IOException excp) {
+                temp.delete();
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+            return install(temp, sha1);
+        }
+    }
+
+    /** Returns a new empty temporary file in the objects directory, for an
+     *  object to be written to before install. */
+    File newTemp() {
+        try {
+            return File.createTempFile("obj-", ".tmp", objectsDir);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Renames TEMP, a complete object file, to object SHA1, or deletes it
+     *  if SHA1 is stored already. Returns true if it was renamed. */
+    boolean install(File temp, String sha1) {
+        synchronized (lock(sha1)) {
+            if (store.contains(sha1)) {
+                temp.delete();
+                return false;
+            }
+            File target = Utils.join(objectsDir, sha1);
+            try {
+                Files.move(temp.toPath(), target.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException excp) {
+                temp.delete();
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+            transaction.written(target);
+            Stats.count(Stats.Counter.OBJECT_WRITES);
+            Stats.count(Stats.Counter.OBJECT_BYTES_WRITTEN, target.length());
+            return true;
+        }
+    }
+
+    /** Returns the lock for SHA1, by its first six bits. */
+    private Object lock(String sha1) {
+        return locks[Character.digit(sha1.charAt(0), 16) << 2
+                | Character.digit(sha1.charAt(1), 16) >> 2];
+    }
+}
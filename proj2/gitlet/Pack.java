@@ -0,0 +1,275 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.*;
+
+/**
+ * A pack of gitlet objects. The pack file holds the stored bytes of many
+ * objects back to back, and the index file lists their SHA-1s in sorted
+ * order, so finding an object is a binary search instead of a directory scan.
+ *
+ * pack-[id].pack:  magic | version | count | object bytes...
+ * pack-[id].idx:   magic | version | count | entry...
+ * entry:           sha1 (20 bytes) | offset (8) | length (4) | lastModified (8)
+ *
+ * where [id] is the SHA-1 of the pack file.
+ *
+ * The bytes of an object are those of its loose file, or a delta against
+ * another object in the pack.
+ *
+ * @author zdkk
+ */
+class Pack {
+    /** Version 2 packs may hold deltas (see Delta); version 1 packs are still read. */
+    static final int VERSION = 2;
+    private static final int PACK_MAGIC = 0x4750414b;   // "GPAK"
+    private static final int INDEX_MAGIC = 0x47494458;  // "GIDX"
+    private static final int HEADER_LENGTH = 12;
+    private static final int SHA1_BYTES = Utils.UID_LENGTH / 2;
+    private static final int ENTRY_LENGTH = SHA1_BYTES + 8 + 4 + 8;
+
+    private final File packFile;
+    private final File indexFile;
+    private final MappedByteBuffer index;
+    private final int size;
+
+    private Pack(File indexFile) {
+        this.indexFile = indexFile;
+        this.packFile = packFile(indexFile);
+        try (FileChannel channel = FileChannel.open(indexFile.toPath(),
+                StandardOpenOption.READ)) {
+            this.index = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        if (index.getInt(0) != INDEX_MAGIC || index.getInt(4) > VERSION) {
+            throw Utils.error("Corrupt pack index %s.", indexFile.getName());
+        }
+        this.size = index.getInt(8);
+    }
+
+    /** Returns the pack file that INDEXFILE is the index of. */
+    static File packFile(File indexFile) {
+        String name = indexFile.getName();
+        return new File(indexFile.getParentFile(),
+                name.substring(0, name.length() - ".idx".length()) + ".pack");
+    }
+
+    /** Returns all packs in PACKDIR, or an empty list if there are none. */
+    static List<Pack> openAll(File packDir) {
+        List<Pack> packs = new ArrayList<>();
+        for (String name : indexNames(packDir)) {
+            packs.add(new Pack(new File(packDir, name)));
+        }
+        return packs;
+    }
+
+    /** Returns the names of the index files in PACKDIR, in sorted order. */
+    static List<String> indexNames(File packDir) {
+        String[] names = packDir.list((dir, name) -> name.endsWith(".idx"));
+        Stats.count(Stats.Counter.DIRECTORY_LISTINGS);
+        if (names == null) {
+            return Collections.emptyList();
+        }
+        Arrays.sort(names);
+        return Arrays.asList(names);
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean contains(String sha1) {
+        return find(sha1) >= 0;
+    }
+
+    /** Returns the offset and length of object SHA1 in the pack file, or
+     *  null if it is not in this pack. */
+    long[] locate(String sha1) {
+        int i = find(sha1);
+        if (i < 0) {
+            return null;
+        }
+        int pos = HEADER_LENGTH + i * ENTRY_LENGTH + SHA1_BYTES;
+        return new long[]{index.getLong(pos), index.getInt(pos + 8)};
+    }
+
+    /** Returns the stored bytes of object SHA1, or null if it is not in this pack. */
+    byte[] read(String sha1) {
+        long[] location = locate(sha1);
+        if (location == null) {
+            return null;
+        }
+        byte[] result = new byte[(int) location[1]];
+        try (RandomAccessFile in = new RandomAccessFile(packFile, "r")) {
+            in.seek(location[0]);
+            in.readFully(result);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        return result;
+    }
+
+    /** Returns the modification time the loose file of SHA1 had when it was
+     *  packed, or 0 if it is not in this pack. */
+    long lastModified(String sha1) {
+        int i = find(sha1);
+        if (i < 0) {
+            return 0;
+        }
+        return index.getLong(HEADER_LENGTH + i * ENTRY_LENGTH + SHA1_BYTES + 12);
+    }
+
+    /** Returns the SHA-1s of all objects in this pack, in sorted order. */
+    List<String> names() {
+        List<String> result = new ArrayList<>(size);
+        byte[] sha1 = new byte[SHA1_BYTES];
+        for (int i = 0; i < size; i += 1) {
+            index.get(HEADER_LENGTH + i * ENTRY_LENGTH, sha1);
+            result.add(Utils.bytesToSha1(sha1));
+        }
+        return result;
+    }
+
+    File getPackFile() {
+        return packFile;
+    }
+
+    File getIndexFile() {
+        return indexFile;
+    }
+
+    void delete() {
+        indexFile.delete();
+        packFile.delete();
+    }
+
+    /** Binary search for SHA1 in the index.  Returns its entry number, or -1. */
+    private int find(String sha1) {
+        if (sha1.length() != Utils.UID_LENGTH) {
+            return -1;
+        }
+        byte[] key = Utils.sha1ToBytes(sha1);
+        int lo = 0;
+        int hi = size - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = compareEntry(mid, key);
+            if (cmp < 0) {
+                lo = mid + 1;
+            } else if (cmp > 0) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    private int compareEntry(int i, byte[] key) {
+        int pos = HEADER_LENGTH + i * ENTRY_LENGTH;
+        for (int j = 0; j < SHA1_BYTES; j += 1) {
+            int cmp = Integer.compare(index.get(pos + j) & 0xff, key[j] & 0xff);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return 0;
+    }
+
+    /** A source of object bytes for the pack writer. */
+    interface Source {
+        byte[] read(String sha1);
+    }
+
+    /**
+     * Writes the objects NAMES into a new pack in PACKDIR, laid out in the
+     * order given, reading each object from SOURCE and recording LASTMODIFIED
+     * for it.  As in git, the pack is named by the SHA-1 of its own bytes, so
+     * a pack rewritten with different bytes never takes the name of the one
+     * it replaces, and one written again with the same bytes is kept as it
+     * is.  The index is installed last, so a pack only becomes visible once
+     * it is complete.  Returns the index file of the new pack.
+     */
+    static File write(File packDir, List<String> names, Map<String, Long> lastModified,
+                      Source source) {
+        List<String> sorted = new ArrayList<>(names);
+        Collections.sort(sorted);
+        File packTemp;
+        File indexTemp;
+        try {
+            packTemp = File.createTempFile("tmp-", ".pack.tmp", packDir);
+            indexTemp = File.createTempFile("tmp-", ".idx.tmp", packDir);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+
+        MessageDigest md = Utils.sha1Digest();
+        Map<String, long[]> locations = new HashMap<>();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new DigestOutputStream(new FileOutputStream(packTemp), md)))) {
+            out.writeInt(PACK_MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(names.size());
+            long offset = HEADER_LENGTH;
+            for (String name : names) {
+                byte[] data = source.read(name);
+                out.write(data);
+                locations.put(name, new long[]{offset, data.length});
+                offset += data.length;
+            }
+        } catch (IOException excp) {
+            packTemp.delete();
+            indexTemp.delete();
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        String id = Utils.bytesToSha1(md.digest());
+        File packFile = Utils.join(packDir, "pack-" + id + ".pack");
+        File indexFile = Utils.join(packDir, "pack-" + id + ".idx");
+        if (indexFile.isFile()) {
+            packTemp.delete();
+            indexTemp.delete();
+            return indexFile;
+        }
+
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(indexTemp)))) {
+            out.writeInt(INDEX_MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(sorted.size());
+            for (String name : sorted) {
+                long[] location = locations.get(name);
+                out.write(Utils.sha1ToBytes(name));
+                out.writeLong(location[0]);
+                out.writeInt((int) location[1]);
+                out.writeLong(lastModified.getOrDefault(name, 0L));
+            }
+        } catch (IOException excp) {
+            packTemp.delete();
+            indexTemp.delete();
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+
+        try {
+            Files.move(packTemp.toPath(), packFile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Files.move(indexTemp.toPath(), indexFile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        return indexFile;
+    }
+}
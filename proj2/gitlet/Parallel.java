@@ -0,0 +1,74 @@
+package gitlet;
+
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+
+/**
+ * Runs independent per-file work, such as hashing working files, on a
+ * ForkJoinPool. The number of threads is taken from the GITLET_THREADS
+ * environment variable and defaults to the number of processors; with one
+ * thread, or one file, the work runs on the calling thread.
+ *
+ * @author zdkk
+ */
+class Parallel {
+    /** Environment variable that sets the number of worker threads. */
+    static final String THREADS_VARIABLE = "GITLET_THREADS";
+
+    /** Returns the number of threads to fan work out over. A value of
+     *  GITLET_THREADS that is not a number is ignored. */
+    static int parallelism() {
+        String threads = System.getenv(THREADS_VARIABLE);
+        if (threads != null) {
+            try {
+                return Math.max(1, Integer.parseInt(threads.trim()));
+            } catch (NumberFormatException excp) {
+                // fall through to the default
+            }
+        }
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Returns a map from each of NAMES to FUNCTION applied to it, in the
+     * order of NAMES. The calls may run concurrently, so FUNCTION must not
+     * modify shared state. An exception thrown by any call is rethrown here.
+     */
+    static <R> Map<String, R> map(Collection<String> names, Function<String, R> function) {
+        Map<String, R> result = new LinkedHashMap<>();
+        int threads = Math.min(parallelism(), names.size());
+        if (threads <= 1) {
+            for (String name : names) {
+                result.put(name, function.apply(name));
+            }
+            return result;
+        }
+        List<Callable<R>> tasks = new ArrayList<>();
+        for (String name : names) {
+            tasks.add(() -> function.apply(name));
+        }
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            List<Future<R>> futures = pool.invokeAll(tasks);
+            Iterator<String> name = names.iterator();
+            for (Future<R> future : futures) {
+                result.put(name.next(), future.get());
+            }
+        } catch (ExecutionException excp) {
+            if (excp.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) excp.getCause();
+            }
+            throw new IllegalArgumentException(excp.getCause());
+        } catch (InterruptedException excp) {
+            Thread.currentThread().interrupt();
+            throw new IllegalArgumentException(excp);
+        } finally {
+            pool.shutdown();
+        }
+        return result;
+    }
+}
@@ -0,0 +1,86 @@
+package gitlet;
+
+import java.io.File;
+import java.util.*;
+
+/**
+ * The SHA-1 and type of every object, for resolving abbreviated ids without
+ * listing the objects directory or reading any object. Entries are kept in
+ * a SortedIndex, so a prefix is found by binary search:
+ *
+ * object-index, object-index.log:  sha1 (20 bytes) | type (1)...
+ *
+ * @author zdkk
+ */
+class PrefixIndex {
+    private static final int MAGIC = 0x47504658;  // "GPFX"
+    private static final int SHA1_BYTES = Utils.UID_LENGTH / 2;
+
+    private final SortedIndex index;
+
+    PrefixIndex(File gitletDir) {
+        this.index = new SortedIndex(Utils.join(gitletDir, "object-index"),
+                Utils.join(gitletDir, "object-index.log"), MAGIC, SHA1_BYTES + 1);
+    }
+
+    /** Returns true if the index has been built for this repository. */
+    boolean exists() {
+        return index.exists();
+    }
+
+    /** Replaces the whole index with TYPES, which maps SHA-1s to object types. */
+    void build(Map<String, Byte> types) {
+        List<byte[]> entries = new ArrayList<>();
+        for (Map.Entry<String, Byte> type : types.entrySet()) {
+            entries.add(entry(type.getKey(), type.getValue()));
+        }
+        index.build(entries);
+    }
+
+    /** Drops what is loaded of the index if another process has changed it. */
+    void refresh() {
+        index.refresh();
+    }
+
+    /** Records that object SHA1 has type TYPE. */
+    void add(String sha1, byte type) {
+        index.add(entry(sha1, type));
+    }
+
+    /**
+     * Returns the SHA-1s of objects of type TYPE that start with PREFIX, in
+     * sorted order, stopping once LIMIT have been found. Asking for two is
+     * enough to tell a unique prefix from an ambiguous one.
+     */
+    List<String> find(String prefix, byte type, int limit) {
+        List<String> result = new ArrayList<>();
+        if (!isHex(prefix)) {
+            return result;
+        }
+        for (byte[] entry : index.find(prefix, limit, e -> e[SHA1_BYTES] == type)) {
+            result.add(Utils.bytesToSha1(Arrays.copyOf(entry, SHA1_BYTES)));
+        }
+        return result;
+    }
+
+    /** Merges recently added entries into the sorted table. */
+    void compact() {
+        index.compact();
+    }
+
+    private static byte[] entry(String sha1, byte type) {
+        byte[] result = Arrays.copyOf(Utils.sha1ToBytes(sha1), SHA1_BYTES + 1);
+        result[SHA1_BYTES] = type;
+        return result;
+    }
+
+    private static boolean isHex(String s) {
+        for (int i = 0; i < s.length(); i += 1) {
+            char c = s.charAt(i);
+            if (!(c >= '0' && c <= '9' || c >= 'a' && c <= 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
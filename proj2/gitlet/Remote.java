@@ -0,0 +1,176 @@
+package gitlet;
+
+import java.io.File;
+import java.util.*;
+
+/**
+ * A gitlet repository as another one sees it: its object store, commit
+ * graph, journal and branches, and the lock of its commands. Remotes are
+ * repositories elsewhere on this machine, recorded by add-remote as the path
+ * of their .gitlet directory in .gitlet/remotes/[name]; the current
+ * repository is wrapped in one too, to send to and receive from them.
+ *
+ * History moves in one transfer per branch. The commit graph of the
+ * sending side is walked down from the branch head to the first commits
+ * the receiving side already has, which gives the missing commits without
+ * reading the others. The trees of the missing commits are walked the same
+ * way, skipping every subtree the receiving side has. The objects found are
+ * then streamed into a single new pack on the receiving side (see
+ * ObjectStore.receive), rather than written file by file, so the cost of a
+ * transfer follows the new history and not the size of either repository.
+ * The new commits are recorded in the graph and journal of the receiving
+ * side before any of its branches may name them.
+ *
+ * @author zdkk
+ */
+class Remote {
+    /** How long a command waits for a remote to finish the command it is running. */
+    private static final long LOCK_TIMEOUT_MILLIS = 10_000;
+
+    private final File gitletDir;
+    private final Transaction transaction;
+    private final ObjectStore store;
+    private final CommitGraph graph;
+    private final CommitJournal journal;
+
+    /** The repository whose .gitlet directory is GITLETDIR. */
+    Remote(File gitletDir) {
+        this.gitletDir = gitletDir;
+        this.transaction = new Transaction(gitletDir);
+        this.store = new ObjectStore(gitletDir, transaction);
+        this.graph = new CommitGraph(gitletDir, store);
+        this.journal = new CommitJournal(gitletDir, store);
+    }
+
+    /** The repository GITLETDIR, through the given parts of it already open. */
+    Remote(File gitletDir, Transaction transaction, ObjectStore store, CommitGraph graph,
+           CommitJournal journal) {
+        this.gitletDir = gitletDir;
+        this.transaction = transaction;
+        this.store = store;
+        this.graph = graph;
+        this.journal = journal;
+    }
+
+    /** Takes the lock of this repository, for as long as the running command
+     *  needs it. Exits with a message if there is no repository. */
+    void lock() {
+        if (!gitletDir.isDirectory()) {
+            throw Utils.error("Remote directory not found.");
+        }
+        if (!transaction.begin(LOCK_TIMEOUT_MILLIS)) {
+            throw Utils.error("Remote repository is busy; try again later.");
+        }
+    }
+
+    void unlock() {
+        transaction.end();
+    }
+
+    /** Returns the SHA-1 of the head of branch NAME, or null if there is no
+     *  such branch. */
+    String branch(String name) {
+        File file = branchFile(name);
+        return file.isFile() ? Utils.readContentsAsString(file) : null;
+    }
+
+    /** Points branch NAME, created if need be, at commit SHA1. */
+    void setBranch(String name, String sha1) {
+        File file = branchFile(name);
+        file.getParentFile().mkdirs();
+        transaction.replace(file, sha1);
+    }
+
+    /** Returns true if this repository has commit SHA1. */
+    boolean hasCommit(String sha1) {
+        return store.contains(sha1);
+    }
+
+    /** Returns true if commit ANCESTOR, which this repository has, is
+     *  DESCENDANT or one of its ancestors. */
+    boolean isAncestor(String ancestor, String descendant) {
+        return ancestor.equals(graph.mergeBase(ancestor, descendant));
+    }
+
+    /** Returns all files of commit SHA1 of this repository, as a map from
+     *  path to blob SHA-1. Reads trees only, no blobs. */
+    Map<String, String> files(String sha1) {
+        Commit commit = store.readCommit(sha1);
+        if (commit.storedTree() == null) {
+            return commit.getBlobs();
+        }
+        return store.readFiles(commit.storedTree());
+    }
+
+    /** Returns the name of the current branch of this repository. */
+    String currentBranch() {
+        return Utils.readContentsAsString(Utils.join(gitletDir, "HEAD"));
+    }
+
+    /**
+     * Copies commit HEAD of this repository, with every commit, tree and
+     * blob it reaches that TARGET lacks, to TARGET, as described above. If
+     * DEPTH is positive, only the commits fewer than DEPTH parent links from
+     * HEAD are copied, and those whose parents are left behind become the
+     * shallow boundary of TARGET (see CommitGraph). Blobs are left behind
+     * too unless BLOBS, for TARGET to fetch when it reads them (see
+     * ObjectStore).
+     */
+    void sendTo(Remote target, String head, int depth, boolean blobs) {
+        List<String> commits;
+        Map<String, Byte> objects = new LinkedHashMap<>();
+        List<String> boundary = new ArrayList<>();
+        Stats.Phase negotiating = Stats.phase("negotiate");
+        try {
+            commits = graph.missing(head, target.store::contains, depth);
+            for (String sha1 : commits) {
+                objects.put(sha1, ObjectStore.TYPE_COMMIT);
+            }
+            for (String sha1 : commits) {
+                Commit commit = store.readCommit(sha1);
+                for (String parent : commit.getParents()) {
+                    if (!objects.containsKey(parent) && !target.store.contains(parent)) {
+                        boundary.add(sha1);
+                        break;
+                    }
+                }
+                collect(commit, target, objects);
+            }
+            if (!blobs) {
+                objects.values().removeIf(type -> type == ObjectStore.TYPE_BLOB);
+            }
+        } finally {
+            negotiating.end();
+        }
+        Stats.Phase packing = Stats.phase("pack");
+        try {
+            target.store.receive(objects, store::readRaw);
+        } finally {
+            packing.end();
+        }
+        target.graph.addShallow(boundary, target.transaction);
+        for (String sha1 : commits) {
+            Commit commit = target.store.readCommit(sha1);
+            target.graph.add(commit);
+            target.journal.add(commit);
+        }
+    }
+
+    /** Puts into OBJECTS, with their types, the trees and blobs of COMMIT
+     *  that TARGET lacks. */
+    private void collect(Commit commit, Remote target, Map<String, Byte> objects) {
+        if (commit.storedTree() != null) {
+            Tree.collect(commit.storedTree(), store, target.store::contains, objects);
+            return;
+        }
+        for (String blob : commit.getBlobs().values()) {
+            if (!objects.containsKey(blob) && !target.store.contains(blob)) {
+                objects.put(blob, ObjectStore.TYPE_BLOB);
+            }
+        }
+    }
+
+    private File branchFile(String name) {
+        return Utils.join(gitletDir, "refs", "heads", name);
+    }
+}
@@ -1,8 +1,20 @@
 package gitlet;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.Serializable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
 import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.*;
 
 import static gitlet.Utils.*;
@@ -26,12 +38,32 @@ public class Repository {
     /**
      * |--.gitlet
      *      |--objects
-     *          |commit and blot
+     *          |commits, trees and blobs
+     *          |--pack
+     *              |pack-[id].pack
+     *              |pack-[id].idx
      *      |--refs
      *          |--heads
      *              |master
      *              |test
+     *              |--[remote]
+     *                  |[branch]
+     *      |--remotes
+     *          |[remote]
+     *      |--tmp
+     *          |new refs and stages, before they replace the old ones
      *      |HEAD
+     *      |shallow
+     *      |promisor
+     *      |format
+     *      |commit-graph
+     *      |object-index
+     *      |object-index.log
+     *      |journal
+     *      |journal.msg
+     *      |message-index
+     *      |message-index.log
+     *      |stat-cache
      *      |add_stage
      *      |remove_stage
      */
@@ -41,15 +73,45 @@ public class Repository {
     public static final File OBJECTS_DIR = join(GITLET_DIR, "objects");
     public static final File REFS_DIR = join(GITLET_DIR, "refs");
     public static final File HEADS_DIR = join(REFS_DIR, "heads");
+    /** Remotes, each a file holding the path of the remote .gitlet directory. */
+    public static final File REMOTES_DIR = join(GITLET_DIR, "remotes");
+    /** In a blobless clone, the name of the remote that missing blobs come from. */
+    public static final File PROMISOR_FILE = join(GITLET_DIR, "promisor");
+    /** Environment variable that makes checkout and reset report the files
+     *  they wrote when 1. */
+    static final String REPORT_VARIABLE = "GITLET_REPORT";
+    /** The remote a clone is made from. */
+    private static final String ORIGIN = "origin";
     public static final File HEAD_FILE = join(GITLET_DIR, "HEAD");
     public static final File ADD_STAGE_FILE = join(GITLET_DIR, "add_stage");
     public static final File REMOVE_STAGE_FILE = join(GITLET_DIR, "remove_stage");
 
+    /** The lock and the durable writes of the running command. */
+    static final Transaction TRANSACTION = new Transaction(GITLET_DIR);
+    /** Packed and loose objects; all object reads go through it. */
+    static final ObjectStore OBJECT_STORE = new ObjectStore(GITLET_DIR, TRANSACTION);
+    /** Parents and generation numbers of all commits, for merge-base queries. */
+    static final CommitGraph COMMIT_GRAPH = new CommitGraph(GITLET_DIR, OBJECT_STORE);
+    /** Every commit with its message, for global-log and find. */
+    static final CommitJournal COMMIT_JOURNAL = new CommitJournal(GITLET_DIR, OBJECT_STORE);
+    /** Blob SHA-1s of working files, keyed by their stat data. */
+    static final StatCache STAT_CACHE = new StatCache(GITLET_DIR, CWD);
+
     private static Commit currCommit;
 
     private static Stage addStage;
     private static Stage removeStage;
 
+    /** Drops what earlier commands in this process loaded of the indexes
+     *  and caches if another process has changed them since, as a push or
+     *  fetch from another repository does to one served by a daemon. Called
+     *  holding the lock, before each command. */
+    static void refresh() {
+        OBJECT_STORE.refresh();
+        COMMIT_GRAPH.refresh();
+        COMMIT_JOURNAL.refresh();
+        STAT_CACHE.refresh();
+    }
 
     /**
      * Creates a new Gitlet version-control system in the current directory. 
@@ -69,15 +131,21 @@ public class Repository {
      * "A Gitlet version-control system already exists in the current directory."
      */
     public static void init() {
-        if (GITLET_DIR.exists()) {
-            String s = "A Gitlet version-control system already exists in the current directory.";
-            System.out.println(s);
-            System.exit(0);
-        }
+        init(false);
+    }
+
+    /**
+     * Like init(), but if COMPRESS, the repository is created in the deflated
+     * format: every object it writes is zlib-compressed. This trades CPU on
+     * every object read and write for a smaller objects directory.
+     */
+    public static void init(boolean compress) {
+        checkNotInit();
         mkdir(GITLET_DIR);
         mkdir(OBJECTS_DIR);
         mkdir(REFS_DIR);
         mkdir(HEADS_DIR);
+        OBJECT_STORE.initFormat(compress ? ObjectStore.FORMAT_DEFLATE : ObjectStore.FORMAT_PLAIN);
 
         initCommit();
         initHEAD();
@@ -100,20 +168,145 @@ public class Repository {
      * @param name: the file name to add
      */
     public static void add(String name) {
+        add(new String[]{name});
+    }
+
+    /**
+     * Adds all files named by NAMES in one go. Each name may be a file, a
+     * directory, which adds the files under it, or a glob pattern such as
+     * "*.txt", matched against paths relative to the working directory.
+     * The stage files are read and written once however many files are
+     * added, and files that are not already stored are hashed and stored
+     * in parallel.
+     *
+     * If any name matches no file, prints "File does not exist." and exits
+     * without changing anything.
+     */
+    public static void add(String[] names) {
         checkInit();
 
-        name = unifiedFileName(name);
-        // find the file in workspace
+        Set<String> fileNames = new LinkedHashSet<>();
+        Stats.Phase matching = Stats.phase("match");
+        try {
+            for (String name : names) {
+                List<String> matched = matchWorkingFiles(name);
+                if (matched == null) {
+                    throw error("File does not exist.");
+                }
+                fileNames.addAll(matched);
+            }
+        } finally {
+            matching.end();
+        }
+
+        currCommit = readCurrCommit();
+        addStage = readAddStage();
+        removeStage = readRemoveStage();
+        // store the files that are changed or not stored yet
+        Map<String, String> sha1s = new LinkedHashMap<>();
+        List<String> toStore = new ArrayList<>();
+        for (String fileName : fileNames) {
+            String sha1 = STAT_CACHE.cachedSha1(fileName);
+            if (sha1 != null && OBJECT_STORE.contains(sha1)) {
+                sha1s.put(fileName, sha1);
+            } else {
+                toStore.add(fileName);
+            }
+        }
+        Map<String, Blob> blobs;
+        Stats.Phase storing = Stats.phase("store");
+        try {
+            blobs = Parallel.map(toStore, Blob::store);
+        } finally {
+            storing.end();
+        }
+        for (Map.Entry<String, Blob> stored : blobs.entrySet()) {
+            String sha1 = stored.getValue().getSha1();
+            OBJECT_STORE.register(sha1, ObjectStore.TYPE_BLOB);
+            STAT_CACHE.record(stored.getKey(), sha1);
+            sha1s.put(stored.getKey(), sha1);
+        }
+        for (String fileName : fileNames) {
+            stageBlob(Blob.ofStored(fileName, sha1s.get(fileName)));
+        }
+        save(ADD_STAGE_FILE, addStage);
+        save(REMOVE_STAGE_FILE, removeStage);
+        STAT_CACHE.save();
+    }
+
+    /**
+     * Returns the names of the working files NAME stands for: the file
+     * itself, the files under it if it is a directory, or the files matching
+     * it if it is a glob pattern. Returns null if it stands for no file in
+     * the working directory.
+     */
+    private static List<String> matchWorkingFiles(String name) {
         File file = getFileFromCWD(name);
-        // check if file:"name" exists
-        if (!file.exists()) {
-            System.out.println("File does not exist.");
-            System.exit(0);
+        List<String> result = new ArrayList<>();
+        if (file.isDirectory()) {
+            return walkWorkingFiles(file);
+        }
+        if (file.exists()) {
+            String path = unifiedFileName(name);
+            return path.startsWith("../") ? null : List.of(path);
         }
-        name = file.getName();
-        // update the file in stage
-        Blob blob = new Blob(name);
-        storeBlob(blob);
+        if (!isGlob(name)) {
+            return null;
+        }
+        PathMatcher matcher;
+        try {
+            matcher = FileSystems.getDefault().getPathMatcher("glob:" + name);
+        } catch (IllegalArgumentException excp) {
+            return null;
+        }
+        for (String path : walkWorkingFiles(CWD)) {
+            if (matcher.matches(Paths.get(path))) {
+                result.add(path);
+            }
+        }
+        return result.isEmpty() ? null : result;
+    }
+
+    private static boolean isGlob(String name) {
+        return name.indexOf('*') >= 0 || name.indexOf('?') >= 0
+                || name.indexOf('[') >= 0 || name.indexOf('{') >= 0;
+    }
+
+    /** Returns the paths, relative to the working directory and separated
+     *  by "/", of all plain files under DIR. The .gitlet directory is not
+     *  entered, so the cost does not grow with the number of objects. */
+    private static List<String> walkWorkingFiles(File dir) {
+        Path root = CWD.toPath().toAbsolutePath().normalize();
+        Path gitlet = GITLET_DIR.toPath().toAbsolutePath().normalize();
+        List<String> result = new ArrayList<>();
+        try {
+            Files.walkFileTree(dir.toPath().toAbsolutePath().normalize(),
+                    new SimpleFileVisitor<>() {
+                        @Override
+                        public FileVisitResult preVisitDirectory(Path path,
+                                                                 BasicFileAttributes attrs) {
+                            if (path.equals(gitlet)) {
+                                return FileVisitResult.SKIP_SUBTREE;
+                            }
+                            Stats.count(Stats.Counter.DIRECTORY_LISTINGS);
+                            return FileVisitResult.CONTINUE;
+                        }
+
+                        @Override
+                        public FileVisitResult visitFile(Path path, BasicFileAttributes attrs) {
+                            if (attrs.isRegularFile()) {
+                                result.add(root.relativize(path).toString()
+                                        .replace(File.separatorChar, '/'));
+                            }
+                            return FileVisitResult.CONTINUE;
+                        }
+                    });
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        result.removeIf(path -> path.startsWith(".."));
+        Collections.sort(result);
+        return result;
     }
 
     /**
@@ -122,17 +315,20 @@ public class Repository {
     public static void commit(String message) {
         checkInit();
         if (message.length() == 0) {
-            System.out.println("Please enter a commit message.");
-            System.exit(0);
+            throw error("Please enter a commit message.");
         }
         currCommit = readCurrCommit();
         addStage = readAddStage();
         removeStage = readRemoveStage();
         if (addStage.isEmpty() && removeStage.isEmpty()) {
-            System.out.println("No changes added to the commit.");
-            System.exit(0);
+            throw error("No changes added to the commit.");
+        }
+        Stats.Phase writing = Stats.phase("write");
+        try {
+            currCommit = getNewCommit(message);
+        } finally {
+            writing.end();
         }
-        currCommit = getNewCommit(message);
         updateCurrBranch();
         addStage.clear();
         removeStage.clear();
@@ -155,8 +351,7 @@ public class Repository {
         removeStage = readRemoveStage();
 
         if (!addStage.contains(name) && !currCommit.containsBlob(name)) {
-            System.out.println("No reason to remove the file.");
-            System.exit(0);
+            throw error("No reason to remove the file.");
         }
 
         if (addStage.contains(name)) {
@@ -166,7 +361,7 @@ public class Repository {
         if (currCommit.containsBlob(name)) {
             removeStage.addBlob(name, currCommit.getSha1ByName(name));
             if (file.exists()) {
-                file.delete();
+                deleteWorkingFile(name);
             }
         }
         save(ADD_STAGE_FILE, addStage);
@@ -179,22 +374,14 @@ public class Repository {
         Commit commit = readCurrCommit();
         while (commit != null) {
             System.out.println(commit.toString());
-            commit = commit.findParent();
+            commit = COMMIT_GRAPH.isShallow(commit.getSha1()) ? null : commit.findParent();
         }
     }
 
     public static void globalLog() {
         checkInit();
 
-        List<String> files = plainFilenamesIn(OBJECTS_DIR);
-        for (String s : files) {
-            File file = Utils.join(OBJECTS_DIR, s);
-            Serializable serializable = Utils.readObject(file, Serializable.class);
-            if (serializable instanceof Commit) {
-                Commit commit = (Commit) (serializable);
-                System.out.println(commit.toString());
-            }
-        }
+        COMMIT_JOURNAL.forEach(System.out::println);
     }
 
     /**
@@ -203,21 +390,12 @@ public class Repository {
      */
     public static void find(String message) {
         checkInit();
-        List<String> files = plainFilenamesIn(OBJECTS_DIR);
-        boolean flag = false;
-        for (String s : files) {
-            File file = Utils.join(OBJECTS_DIR, s);
-            Serializable serializable = Utils.readObject(file, Serializable.class);
-            if (serializable instanceof Commit) {
-                Commit commit = (Commit) (serializable);
-                if (commit.getMessage().equals(message)) {
-                    System.out.println(commit.getSha1());
-                    flag = true;
-                }
-            }
+        List<String> commits = COMMIT_JOURNAL.find(message);
+        for (String s : commits) {
+            System.out.println(s);
         }
 
-        if (!flag) {
+        if (commits.isEmpty()) {
             System.out.println("Found no commit with that message.");
         }
     }
@@ -228,7 +406,7 @@ public class Repository {
         addStage = readAddStage();
         removeStage = readRemoveStage();
         String currBranch = readCurrBranch();
-        List<String> branch = Utils.plainFilenamesIn(HEADS_DIR);
+        List<String> branch = branchNames(HEADS_DIR, "");
         Collections.sort(branch);
         System.out.println("=== Branches ===");
         for (String s : branch) {
@@ -254,15 +432,45 @@ public class Repository {
         }
         System.out.println();
         System.out.println("=== Modifications Not Staged For Commit ===");
-        for (String s : getModifiedFile()) {
-            System.out.println(s);
+        Stats.Phase findingModified = Stats.phase("modified");
+        try {
+            for (String s : getModifiedFile()) {
+                System.out.println(s);
+            }
+        } finally {
+            findingModified.end();
         }
         System.out.println();
         System.out.println("=== Untracked Files ===");
-        for (String s : getUntrackedFile()) {
-            System.out.println(s);
+        Stats.Phase findingUntracked = Stats.phase("untracked");
+        try {
+            for (String s : getUntrackedFile()) {
+                System.out.println(s);
+            }
+        } finally {
+            findingUntracked.end();
         }
         System.out.println();
+        STAT_CACHE.save();
+    }
+
+    /** Returns the names of the branches in DIR, each after PREFIX. The
+     *  branches fetched from a remote are in a directory named after it. */
+    private static List<String> branchNames(File dir, String prefix) {
+        List<String> result = new ArrayList<>();
+        File[] files = dir.listFiles();
+        Stats.count(Stats.Counter.DIRECTORY_LISTINGS);
+        if (files == null) {
+            return result;
+        }
+        for (File file : files) {
+            if (file.isDirectory()) {
+                result.addAll(branchNames(file, prefix + file.getName() + "/"));
+            } else {
+                result.add(prefix + file.getName());
+            }
+        }
+        return result;
     }
 
     private static List<String> getModifiedFile() {
@@ -271,12 +479,26 @@ public class Repository {
         removeStage = readRemoveStage();
         Map<String, String> map = new HashMap<>();
 
-        for (String fileName : currCommit.getBlobs().keySet()) {
+        // hash every file that has to be compared in one parallel batch
+        Map<String, String> committed = currCommit.getBlobs();
+        Set<String> toHash = new HashSet<>();
+        for (String fileName : committed.keySet()) {
+            if (!addStage.getBlobs().containsKey(fileName) && join(CWD, fileName).exists()) {
+                toHash.add(fileName);
+            }
+        }
+        for (String fileName : addStage.getBlobs().keySet()) {
+            if (join(CWD, fileName).exists()) {
+                toHash.add(fileName);
+            }
+        }
+        Map<String, String> sha1s = STAT_CACHE.sha1s(toHash);
+
+        for (String fileName : committed.keySet()) {
             File file = Utils.join(CWD, fileName);
             if (!addStage.getBlobs().containsKey(fileName)) {
                 if (file.exists()) {
-                    Blob blob = new Blob(fileName);
-                    if (!blob.getSha1().equals(currCommit.getBlobs().get(fileName))) {
+                    if (!sha1s.get(fileName).equals(committed.get(fileName))) {
                         map.put(fileName, "(modified)");
                     }
                 }
@@ -291,8 +513,7 @@ public class Repository {
         for (String fileName : addStage.getBlobs().keySet()) {
             File file = Utils.join(CWD, fileName);
             if (file.exists()) {
-                Blob blob = new Blob(fileName);
-                if (!blob.getSha1().equals(addStage.getBlobs().get(fileName))) {
+                if (!sha1s.get(fileName).equals(addStage.getBlobs().get(fileName))) {
                     map.put(fileName, "(modified)");
                 }
             } else {
@@ -312,10 +533,11 @@ public class Repository {
         addStage = readAddStage();
         removeStage = readRemoveStage();
 
+        Map<String, String> committed = currCommit.getBlobs();
         List<String> res = new ArrayList<>();
-        for (String fileName : Utils.plainFilenamesIn(CWD)) {
+        for (String fileName : walkWorkingFiles(CWD)) {
             if (!addStage.getBlobs().containsKey(fileName)
-                    && !currCommit.getBlobs().containsKey(fileName)) {
+                    && !committed.containsKey(fileName)) {
                 res.add(fileName);
             } else if (removeStage.getBlobs().containsKey(fileName)) {
                 res.add(fileName);
@@ -324,102 +546,191 @@ public class Repository {
         return res;
     }
 
+    /** Shows the changes in the working files that are not staged, as a
+     *  unified diff of each staged or committed version against its working
+     *  file. Untracked files are not shown. */
+    public static void diff() {
+        checkInit();
+        currCommit = readCurrCommit();
+        addStage = readAddStage();
+        removeStage = readRemoveStage();
+        Map<String, String> staged = stagedBlobs();
+        Set<String> present = new HashSet<>();
+        for (String fileName : staged.keySet()) {
+            if (join(CWD, fileName).isFile()) {
+                present.add(fileName);
+            }
+        }
+        Map<String, String> sha1s = STAT_CACHE.sha1s(present);
+        for (String fileName : new TreeSet<>(staged.keySet())) {
+            String sha1 = staged.get(fileName);
+            if (!present.contains(fileName)) {
+                writeDiff(fileName, sha1, null);
+            } else if (!sha1s.get(fileName).equals(sha1)) {
+                writeDiff(fileName, blobLines(sha1), workingLines(fileName), false, false);
+            }
+        }
+        STAT_CACHE.save();
+    }
+
+    /** Shows the staged changes, as a unified diff of the current commit
+     *  against what the next commit would hold. */
+    public static void diffStaged() {
+        checkInit();
+        currCommit = readCurrCommit();
+        addStage = readAddStage();
+        removeStage = readRemoveStage();
+        writeDiff(currCommit.getBlobs(), stagedBlobs());
+    }
+
+    /** Shows the changes from commit FROMID to commit TOID as a unified diff. */
+    public static void diff(String fromID, String toID) {
+        checkInit();
+        String from = readFullCommitSha1(fromID);
+        String to = readFullCommitSha1(toID);
+        if (from == null || to == null) {
+            throw error("No commit with that id exists.");
+        }
+        writeDiff(readCommitBySha1(from).getBlobs(), readCommitBySha1(to).getBlobs());
+    }
+
+    /** Returns the files of the current commit with the staged changes
+     *  applied, as a map from file name to blob. */
+    private static Map<String, String> stagedBlobs() {
+        Map<String, String> blobs = new HashMap<>(currCommit.getBlobs());
+        blobs.putAll(addStage.getBlobs());
+        blobs.keySet().removeAll(removeStage.getBlobs().keySet());
+        return blobs;
+    }
+
+    /** Writes the diff of the files mapped to blobs in FROM to those in TO,
+     *  in order of file name. */
+    private static void writeDiff(Map<String, String> from, Map<String, String> to) {
+        Set<String> fileNames = new TreeSet<>(from.keySet());
+        fileNames.addAll(to.keySet());
+        for (String fileName : fileNames) {
+            String fromSha1 = from.get(fileName);
+            String toSha1 = to.get(fileName);
+            if (!Objects.equals(fromSha1, toSha1)) {
+                writeDiff(fileName, fromSha1, toSha1);
+            }
+        }
+    }
+
+    /** Writes the diff of file FILENAME from blob FROM to blob TO, either
+     *  of which is null if the file is missing there. */
+    private static void writeDiff(String fileName, String from, String to) {
+        writeDiff(fileName, blobLines(from), blobLines(to), from == null, to == null);
+    }
+
+    /** Writes the diff of file FILENAME from lines FROM to lines TO, under a
+     *  header as git writes it. ADDED or DELETED is set if the file is
+     *  missing on the one side. */
+    private static void writeDiff(String fileName, Diff.Lines from, Diff.Lines to,
+                                  boolean added, boolean deleted) {
+        System.out.println("diff --git a/" + fileName + " b/" + fileName);
+        if (added) {
+            System.out.println("new file");
+        } else if (deleted) {
+            System.out.println("deleted file");
+        }
+        System.out.println("--- " + (added ? "/dev/null" : "a/" + fileName));
+        System.out.println("+++ " + (deleted ? "/dev/null" : "b/" + fileName));
+        try {
+            Diff.writeUnified(from, to, System.out);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Returns the lines of working file FILENAME, memory-mapped. */
+    private static Diff.Lines workingLines(String fileName) {
+        try (FileChannel in = FileChannel.open(join(CWD, fileName).toPath(),
+                StandardOpenOption.READ)) {
+            return new Diff.Lines(in.map(FileChannel.MapMode.READ_ONLY, 0, in.size()));
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
     public static void checkout(String branchName) {
         checkInit();
         File branchFile = Utils.join(HEADS_DIR, branchName);
         if (!branchFile.exists()) {
-            System.out.println("No such branch exists.");
-            System.exit(0);
+            throw error("No such branch exists.");
         }
 
         String currBranchName = readCurrBranch();
         if (branchName.equals(currBranchName)) {
-            System.out.println("No need to checkout the current branch.");
-            System.exit(0);
+            throw error("No need to checkout the current branch.");
         }
 
         Commit targetCommit = readCommitBySha1(Utils.readContentsAsString(branchFile));
         currCommit = readCurrCommit();
 
-        boolean flag = checkUntrackedFileExists(currCommit, targetCommit);
-        if (!flag) {
-            System.out.println("There is an untracked file in the way; "
-                    + "delete it, or add and commit it first.");
-            System.exit(0);
-        }
-
-        checkoutModifyWorkspace(targetCommit, currCommit);
+        int[] unchanged = new int[1];
+        Map<String, String[]> changes = checkoutChanges(currCommit, targetCommit, unchanged);
+        checkoutModifyWorkspace(changes, unchanged[0]);
         clearStage();
         currCommit = targetCommit;
         updateHEAD(branchName);
+        STAT_CACHE.save();
     }
 
     public static void checkout(String mark, String fileName) {
         if (!mark.equals("--")) {
-            System.out.println("Incorrect operands.");
-            System.exit(0);
+            throw error("Incorrect operands.");
         }
         checkInit();
         fileName = unifiedFileName(fileName);
         currCommit = readCurrCommit();
         if (!currCommit.containsBlob(fileName)) {
-            System.out.println("File does not exist in that commit.");
-            System.exit(0);
+            throw error("File does not exist in that commit.");
         }
-        File targetFile = Utils.join(CWD, fileName);
-        File originFile = Utils.join(OBJECTS_DIR, currCommit.getBlobs().get(fileName));
-
-        Blob blob = Utils.readObject(originFile, Blob.class);
-        Utils.writeContents(targetFile, blob.getBytes());
+        changeWorkSpaceFile(fileName, currCommit.getSha1ByName(fileName));
+        STAT_CACHE.save();
     }
 
     public static void checkout(String commitID, String mark, String fileName) {
         if (!mark.equals("--")) {
-            System.out.println("Incorrect operands.");
-            System.exit(0);
+            throw error("Incorrect operands.");
         }
         checkInit();
         fileName = unifiedFileName(fileName);
 
         String res = readFullCommitSha1(commitID);
         if (res == null) {
-            System.out.println("No commit with that id exists.");
-            System.exit(0);
+            throw error("No commit with that id exists.");
         }
 
         Commit commit = readCommitBySha1(res);
         if (!commit.containsBlob(fileName)) {
-            System.out.println("File does not exist in that commit.");
-            System.exit(0);
+            throw error("File does not exist in that commit.");
         }
-        File targetFile = Utils.join(CWD, fileName);
-        File originFile = Utils.join(OBJECTS_DIR, commit.getBlobs().get(fileName));
-        Utils.writeContents(targetFile, Utils.readObject(originFile, Blob.class).getBytes());
+        changeWorkSpaceFile(fileName, commit.getSha1ByName(fileName));
+        STAT_CACHE.save();
     }
 
     public static void branch(String branchName) {
         checkInit();
         File branchFile = Utils.join(HEADS_DIR, branchName);
         if (branchFile.exists()) {
-            System.out.println("A branch with that name already exists.");
-            System.exit(0);
+            throw error("A branch with that name already exists.");
         }
         currCommit = readCurrCommit();
-        Utils.writeContents(branchFile, currCommit.getSha1());
+        TRANSACTION.replace(branchFile, currCommit.getSha1());
     }
 
     public static void rmBranch(String branchName) {
         checkInit();
         File branchFile = Utils.join(HEADS_DIR, branchName);
         if (!branchFile.exists()) {
-            System.out.println("A branch with that name does not exist.");
-            System.exit(0);
+            throw error("A branch with that name does not exist.");
         }
 
         String currBranchName = readCurrBranch();
-        if (branchFile.getName().equals(currBranchName)) {
-            System.out.println("Cannot remove the current branch.");
-            System.exit(0);
+        if (branchName.equals(currBranchName)) {
+            throw error("Cannot remove the current branch.");
         }
         branchFile.delete();
     }
@@ -428,23 +739,69 @@ public class Repository {
         checkInit();
         commitID = readFullCommitSha1(commitID);
         if (commitID == null) {
-            System.out.println("No commit with that id exists.");
-            System.exit(0);
+            throw error("No commit with that id exists.");
         }
         Commit targetCommit = readCommitBySha1(commitID);
         currCommit = readCurrCommit();
 
-        boolean flag = checkUntrackedFileExists(currCommit, targetCommit);
-        if (!flag) {
-            System.out.println("There is an untracked file in the way; "
-                    + "delete it, or add and commit it first.");
-            System.exit(0);
-        }
-
-        checkoutModifyWorkspace(targetCommit, currCommit);
+        int[] unchanged = new int[1];
+        Map<String, String[]> changes = checkoutChanges(currCommit, targetCommit, unchanged);
+        checkoutModifyWorkspace(changes, unchanged[0]);
         clearStage();
         currCommit = targetCommit;
         updateCurrBranch();
+        STAT_CACHE.save();
+    }
+
+    /**
+     * Moves all loose objects and existing packs into a single pack with a
+     * sorted index, so that object lookups no longer depend on the size of
+     * the objects directory.
+     */
+    public static void gc() {
+        checkInit();
+        Stats.Phase repacking = Stats.phase("repack");
+        try {
+            OBJECT_STORE.repack();
+        } finally {
+            repacking.end();
+        }
+    }
+
+    /** Serves commands for this repository from this process until stopped
+     *  (see Daemon). */
+    public static void serve() {
+        checkInit();
+        Daemon.serve(GITLET_DIR);
+    }
+
+    /**
+     * Rewrites the stages, and every commit and blob written by an older
+     * version with Java serialization, in the current binary formats, and
+     * stores the file map of each commit that has one as a tree. The
+     * SHA-1s of the objects do not change. Older objects stay readable
+     * without this, and other commands never convert them; it only saves
+     * their space and decoding time, except for files with non-ASCII text.
+     * Older versions hashed those differently, so until this is run they
+     * show as modified; migrate gives their blobs their current SHA-1s in
+     * the commits and stages (see ObjectStore.migrate).
+     */
+    public static void migrate() {
+        checkInit();
+        Map<String, String> renamed = new HashMap<>();
+        int count = OBJECT_STORE.migrate(renamed);
+        save(ADD_STAGE_FILE, renameBlobs(readAddStage(), renamed));
+        save(REMOVE_STAGE_FILE, renameBlobs(readRemoveStage(), renamed));
+        System.out.println("Migrated " + count + " objects.");
+    }
+
+    /** Replaces the blob SHA-1s in STAGE that are keys of RENAMED by their
+     *  values, and returns STAGE. */
+    private static Stage renameBlobs(Stage stage, Map<String, String> renamed) {
+        for (Map.Entry<String, String> blob : stage.getBlobs().entrySet()) {
+            blob.setValue(renamed.getOrDefault(blob.getValue(), blob.getValue()));
+        }
+        return stage;
     }
 
     public static void merge(String branchName) {
@@ -452,51 +809,232 @@ public class Repository {
         addStage = readAddStage();
         removeStage = readRemoveStage();
         if (!addStage.isEmpty() || !removeStage.isEmpty()) {
-            System.out.println("You have uncommitted changes.");
-            System.exit(0);
+            throw error("You have uncommitted changes.");
         }
         File branchFile = Utils.join(HEADS_DIR, branchName);
         if (!branchFile.exists()) {
-            System.out.println("A branch with that name does not exist.");
-            System.exit(0);
+            throw error("A branch with that name does not exist.");
         }
-        if (branchFile.getName().equals(readCurrBranch())) {
-            System.out.println("Cannot merge a branch with itself.");
-            System.exit(0);
+        if (branchName.equals(readCurrBranch())) {
+            throw error("Cannot merge a branch with itself.");
         }
 
         currCommit = readCurrCommit();
         Commit commit = readCommitBySha1(Utils.readContentsAsString(branchFile));
-        Commit ancestor = findAncestor(currCommit, commit);
+        Commit ancestor;
+        Stats.Phase findingBase = Stats.phase("merge-base");
+        try {
+            ancestor = findAncestor(currCommit, commit);
+        } finally {
+            findingBase.end();
+        }
 
         if (ancestor.getSha1().equals(commit.getSha1())) {
-            System.out.println("Given branch is an ancestor of the current branch.");
-            System.exit(0);
+            throw error("Given branch is an ancestor of the current branch.");
         }
         if (ancestor.getSha1().equals(currCommit.getSha1())) {
             System.out.println("Current branch fast-forwarded.");
         }
-        boolean flag = dealMerge(commit, currCommit, ancestor, branchName);
+        boolean flag;
+        Stats.Phase merging = Stats.phase("merge");
+        try {
+            flag = dealMerge(commit, currCommit, ancestor, branchName);
+        } finally {
+            merging.end();
+        }
         if (!flag) {
-            System.out.println("There is an untracked file in the way; "
+            throw error("There is an untracked file in the way; "
                     + "delete it, or add and commit it first.");
-            System.exit(0);
         }
     }
 
+    /** Records the repository whose .gitlet directory is at PATH, with "/"
+     *  separating its parts, as remote NAME. */
+    public static void addRemote(String name, String path) {
+        checkInit();
+        File remoteFile = join(REMOTES_DIR, name);
+        if (remoteFile.exists()) {
+            throw error("A remote with that name already exists.");
+        }
+        REMOTES_DIR.mkdir();
+        TRANSACTION.replace(remoteFile, path.replace('/', File.separatorChar));
+    }
+
+    public static void rmRemote(String name) {
+        checkInit();
+        File remoteFile = join(REMOTES_DIR, name);
+        if (!remoteFile.exists()) {
+            throw error("A remote with that name does not exist.");
+        }
+        remoteFile.delete();
+    }
+
+    /**
+     * Appends the commits of the current branch that branch BRANCHNAME of
+     * remote REMOTENAME lacks to it, creating it if need be, and moves it to
+     * the current commit. The remote branch must be an ancestor of the
+     * current commit. Only the missing objects are sent, in one pack (see
+     * Remote).
+     */
+    public static void push(String remoteName, String branchName) {
+        checkInit();
+        Remote remote = openRemote(remoteName);
+        remote.lock();
+        try {
+            Remote local = localRepository();
+            String head = readCurrCommitSha1();
+            String remoteHead = remote.branch(branchName);
+            if (remoteHead != null && !(local.hasCommit(remoteHead)
+                    && local.isAncestor(remoteHead, head))) {
+                throw error("Please pull down remote changes before pushing.");
+            }
+            local.sendTo(remote, head, 0, true);
+            remote.setBranch(branchName, head);
+        } finally {
+            remote.unlock();
+        }
+    }
+
+    /**
+     * Copies the commits of branch BRANCHNAME of remote REMOTENAME that this
+     * repository lacks, with their objects, and points the local branch
+     * [REMOTENAME]/[BRANCHNAME] at its head. A blobless clone fetches no
+     * blobs from the remote it was cloned from.
+     */
+    public static void fetch(String remoteName, String branchName) {
+        checkInit();
+        Remote remote = openRemote(remoteName);
+        remote.lock();
+        try {
+            String head = remote.branch(branchName);
+            if (head == null) {
+                throw error("That remote does not have that branch.");
+            }
+            Remote local = localRepository();
+            remote.sendTo(local, head, 0, !remoteName.equals(promisorName()));
+            local.setBranch(remoteName + "/" + branchName, head);
+        } finally {
+            remote.unlock();
+        }
+    }
+
+    /**
+     * Creates a repository in the current directory from the repository
+     * whose .gitlet directory is at PATH, recorded as remote "origin", and
+     * checks out its current branch. If DEPTH is positive, only the last
+     * DEPTH commits of it are copied, and log and merge stop at the oldest
+     * of them. If BLOBLESS, the commits and trees are copied but no file
+     * contents: a command that reads a file copies it from the remote then.
+     * Nothing is created unless PATH is a repository with a current branch
+     * and no untracked file is in the way of its files.
+     */
+    public static void clone(String path, int depth, boolean blobless) {
+        checkNotInit();
+        File dir = getFileFromCWD(path);
+        if (!join(dir, "HEAD").isFile()) {
+            throw error("Remote directory not found.");
+        }
+        Remote remote = new Remote(dir);
+        String branchName;
+        String head;
+        remote.lock();
+        try {
+            branchName = remote.currentBranch();
+            head = remote.branch(branchName);
+            if (head == null) {
+                throw error("That remote does not have that branch.");
+            }
+            for (String fileName : remote.files(head).keySet()) {
+                if (getFileFromCWD(fileName).exists()) {
+                    throw error("There is an untracked file in the way; "
+                            + "delete it, or add and commit it first.");
+                }
+            }
+            init();
+            addRemote(ORIGIN, path);
+            if (blobless) {
+                TRANSACTION.replace(PROMISOR_FILE, ORIGIN);
+            }
+            Remote local = localRepository();
+            remote.sendTo(local, head, depth, !blobless);
+            local.setBranch(ORIGIN + "/" + branchName, head);
+        } finally {
+            remote.unlock();
+        }
+
+        Commit targetCommit = readCommitBySha1(head);
+        int[] unchanged = new int[1];
+        checkoutModifyWorkspace(checkoutChanges(currCommit, targetCommit, unchanged),
+                unchanged[0]);
+        currCommit = targetCommit;
+        if (!branchName.equals(readCurrBranch())) {
+            join(HEADS_DIR, readCurrBranch()).delete();
+            updateHEAD(branchName);
+        }
+        updateCurrBranch();
+        STAT_CACHE.save();
+    }
+
+    /** Fetches branch BRANCHNAME of remote REMOTENAME and merges it into the
+     *  current branch. */
+    public static void pull(String remoteName, String branchName) {
+        fetch(remoteName, branchName);
+        merge(remoteName + "/" + branchName);
+    }
+
+    /** Returns remote NAME. Exits with a message if there is no such remote
+     *  or its directory is missing. */
+    private static Remote openRemote(String name) {
+        File remoteFile = join(REMOTES_DIR, name);
+        if (!remoteFile.isFile()) {
+            throw error("A remote with that name does not exist.");
+        }
+        File dir = getFileFromCWD(readContentsAsString(remoteFile));
+        if (!dir.isDirectory()) {
+            throw error("Remote directory not found.");
+        }
+        try {
+            if (dir.getCanonicalFile().equals(GITLET_DIR.getCanonicalFile())) {
+                throw error("A remote cannot be the repository itself.");
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        return new Remote(dir);
+    }
+
+    /** Returns the remote this blobless clone was cloned from, or null if
+     *  this repository is not one. */
+    private static String promisorName() {
+        return PROMISOR_FILE.exists() ? readContentsAsString(PROMISOR_FILE) : null;
+    }
+
+    /** Returns this repository, as remotes see it. */
+    private static Remote localRepository() {
+        return new Remote(GITLET_DIR, TRANSACTION, OBJECT_STORE, COMMIT_GRAPH, COMMIT_JOURNAL);
+    }
+
     private static void changeWorkSpaceFile(String fileName, String sha1) {
         File file = Utils.join(CWD, fileName);
-        String s = readBlobContentBySha1(sha1);
-        Utils.writeContents(file, s);
+        if (file.isDirectory()) {
+            throw error("There is a directory in the way; delete it first.");
+        }
+        file.getParentFile().mkdirs();
+        OBJECT_STORE.copyBlobTo(sha1, file);
+        Stats.count(Stats.Counter.FILES_WRITTEN);
+        STAT_CACHE.record(fileName, sha1);
     }
 
     private static boolean subDealMerge(Commit a, Commit b, Commit c,
                                         Map<String, String> map, Set<String> set, boolean[] bool) {
         boolean flag = false;
-        for (String fileName : c.getBlobs().keySet()) {
-            String sha1 = c.getBlobs().get(fileName);
-            String commitSha1 = a.getBlobs().getOrDefault(fileName, null);
-            String currCommitSha1 = b.getBlobs().getOrDefault(fileName, null);
+        Map<String, String> filesA = a.getBlobs();
+        Map<String, String> filesB = b.getBlobs();
+        Map<String, String> filesC = c.getBlobs();
+        for (String fileName : filesC.keySet()) {
+            String sha1 = filesC.get(fileName);
+            String commitSha1 = filesA.getOrDefault(fileName, null);
+            String currCommitSha1 = filesB.getOrDefault(fileName, null);
             if (currCommitSha1 != null && sha1.equals(commitSha1)
                     && !sha1.equals(currCommitSha1)) {
                 map.put(fileName, currCommitSha1);
@@ -514,31 +1052,29 @@ public class Repository {
             } else if (currCommitSha1 == null && sha1.equals(commitSha1)) {
                 continue;
             } else {
-                String s1 = currCommitSha1 == null ? "" : readBlobContentBySha1(currCommitSha1);
-                String s2 = commitSha1 == null ? "" : readBlobContentBySha1(commitSha1);
-                Blob blob = new Blob(fileName, generateBlobByMerge(s1, s2));
+                boolean[] conflict = new boolean[1];
+                Blob blob = mergeBlob(fileName, sha1, currCommitSha1, commitSha1, conflict);
                 File file = join(CWD, fileName);
                 if (file.exists() && currCommitSha1 == null
                         && !blob.getSha1().equals(commitSha1)) {
                     return false;
                 }
-                blob.save();
                 map.put(fileName, blob.getSha1());
                 addStage.getBlobs().put(fileName, blob.getSha1());
-                flag = true;
+                flag |= conflict[0];
             }
         }
 
-        for (String fileName : a.getBlobs().keySet()) {
-            String sha1 = c.getBlobs().getOrDefault(fileName, null);
+        for (String fileName : filesA.keySet()) {
+            String sha1 = filesC.getOrDefault(fileName, null);
             if (sha1 != null) {
                 continue;
             }
-            String commitSha1 = a.getBlobs().getOrDefault(fileName, null);
-            String currCommitSha1 = b.getBlobs().getOrDefault(fileName, null);
+            String commitSha1 = filesA.getOrDefault(fileName, null);
+            String currCommitSha1 = filesB.getOrDefault(fileName, null);
             if (currCommitSha1 == null) {
                 File file = join(CWD, fileName);
-                if (file.exists() && !new Blob(fileName).getSha1().equals(commitSha1)) {
+                if (file.exists() && !STAT_CACHE.sha1(fileName).equals(commitSha1)) {
                     return false;
                 }
                 map.put(fileName, commitSha1);
@@ -547,13 +1083,11 @@ public class Repository {
                 if (commitSha1.equals(currCommitSha1)) {
                     map.put(fileName, currCommitSha1);
                 } else {
-                    Blob blob = new Blob(fileName,
-                            generateBlobByMerge(readBlobContentBySha1(currCommitSha1),
-                                    readBlobContentBySha1(commitSha1)));
-                    blob.save();
+                    boolean[] conflict = new boolean[1];
+                    Blob blob = mergeBlob(fileName, null, currCommitSha1, commitSha1, conflict);
                     map.put(fileName, blob.getSha1());
                     addStage.getBlobs().put(fileName, blob.getSha1());
-                    flag = true;
+                    flag |= conflict[0];
                 }
             }
         }
@@ -573,14 +1107,12 @@ public class Repository {
             System.out.println("Encountered a merge conflict.");
         }
         for (String fileName : map.keySet()) {
-            String sha1 = map.get(fileName);
-            String s = readBlobContentBySha1(sha1);
-            writeContents(join(CWD, fileName), s);
+            changeWorkSpaceFile(fileName, map.get(fileName));
         }
         for (String fileName : set) {
             File file = join(CWD, fileName);
             if (file.exists()) {
-                file.delete();
+                deleteWorkingFile(fileName);
             }
         }
         String message = String.format("Merged %s into %s.", ss, readCurrBranch());
@@ -590,98 +1122,129 @@ public class Repository {
         List<String> parents = new ArrayList<>();
         parents.add(b.getSha1());
         parents.add(a.getSha1());
-        Map<String, String> blobs = new HashMap<>(currCommit.getBlobs());
-        blobs.putAll(addStage.getBlobs());
-        for (Map.Entry<String, String> entry : removeStage.getBlobs().entrySet()) {
-            blobs.remove(entry.getKey());
-        }
-        Commit res = new Commit(message, blobs, parents);
-        res.save();
+        Commit res = new Commit(message, stagedTree(), parents);
+        saveCommit(res);
         currCommit = res;
         updateCurrBranch();
+        STAT_CACHE.save();
         return true;
     }
 
-    private static String generateBlobByMerge(String curr, String target) {
-        return "<<<<<<< HEAD\n" + curr + "=======\n" + target + ">>>>>>>\n";
+    /**
+     * Merges line by line (see Merge3) the versions CURR and TARGET of file
+     * FILENAME, both changed from the version BASE; any of them is null if
+     * the file is missing there. The result is written to a temporary file
+     * and stored from there, so no version is held in memory as a whole.
+     * Returns the stored blob, and sets CONFLICT[0] if the changes overlap.
+     */
+    private static Blob mergeBlob(String fileName, String base, String curr, String target,
+                                  boolean[] conflict) {
+        File temp = null;
+        try {
+            temp = File.createTempFile("merge-", ".tmp", OBJECTS_DIR);
+            try (OutputStream out = new BufferedOutputStream(new FileOutputStream(temp))) {
+                conflict[0] = Merge3.merge(blobLines(base), blobLines(curr), blobLines(target),
+                        out);
+            }
+            Blob blob = Blob.store(fileName, temp);
+            OBJECT_STORE.register(blob.getSha1(), ObjectStore.TYPE_BLOB);
+            return blob;
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        } finally {
+            if (temp != null) {
+                temp.delete();
+            }
+        }
+    }
+
+    private static Diff.Lines blobLines(String sha1) {
+        return sha1 == null ? Diff.Lines.EMPTY : new Diff.Lines(OBJECT_STORE.mapBlobContent(sha1));
     }
 
 
     private static Commit findAncestor(Commit a, Commit b) {
-        Set<String> aParents = getParents(a);
-        Set<String> bParents = getParents(b);
-        String res = null;
-        for (String s : aParents) {
-            if (bParents.contains(s)) {
-                if (res == null) {
-                    res = s;
-                } else {
-                    File resFile = Utils.join(OBJECTS_DIR, res);
-                    File file = Utils.join(OBJECTS_DIR, s);
-                    if (resFile.lastModified() < file.lastModified()) {
-                        res = s;
-                    }
-                }
-            }
+        String ancestor = COMMIT_GRAPH.mergeBase(a.getSha1(), b.getSha1());
+        if (ancestor == null) {
+            throw error("No common ancestor within the history of this shallow clone.");
         }
-        return readCommitBySha1(res);
+        return readCommitBySha1(ancestor);
     }
 
-    private static Set<String> getParents(Commit a) {
-        Set<String> set = new HashSet<>();
-        Queue<String> q = new LinkedList<>();
-        q.offer(a.getSha1());
-        while (!q.isEmpty()) {
-            String sha1 = q.poll();
-            set.add(sha1);
-            Commit commit = readCommitBySha1(sha1);
-            for (String s : commit.getParents()) {
-                q.offer(s);
+    /**
+     * Returns the files to change in the working directory to go from commit
+     * CURR to TARGETCOMMIT, as a map from path to the pair {blob in CURR,
+     * blob in TARGETCOMMIT}, either null if the file is missing there. These
+     * are the files that differ between the two commits (only the trees
+     * that differ are read, see Tree.diff; a commit stored with a file map
+     * is compared by its map, so nothing is written), and the staged files, whose
+     * staged versions are dropped. Exits with a message if a file that
+     * TARGETCOMMIT has and CURR does not is in the way. Adds to
+     * UNCHANGED[0] the number of entries left as they are (see Tree.diff).
+     */
+    private static Map<String, String[]> checkoutChanges(Commit curr, Commit targetCommit,
+                                                         int[] unchanged) {
+        Map<String, String[]> changes;
+        Stats.Phase diffing = Stats.phase("diff");
+        try {
+            if (curr.storedTree() != null && targetCommit.storedTree() != null) {
+                changes = Tree.diff(curr.storedTree(), targetCommit.storedTree(), OBJECT_STORE,
+                        unchanged);
+            } else {
+                // the initial commit, or one of an older version not migrated
+                changes = Tree.diffFiles(curr.getBlobs(), targetCommit.getBlobs(), unchanged);
+            }
+        } finally {
+            diffing.end();
+        }
+        for (Map.Entry<String, String[]> change : changes.entrySet()) {
+            if (change.getValue()[0] == null && inTheWay(change.getKey(), changes)) {
+                throw error("There is an untracked file in the way; "
+                        + "delete it, or add and commit it first.");
             }
         }
-        return set;
+        Set<String> staged = new TreeSet<>(readAddStage().getBlobs().keySet());
+        staged.addAll(readRemoveStage().getBlobs().keySet());
+        for (String fileName : staged) {
+            if (!changes.containsKey(fileName) && targetCommit.containsBlob(fileName)) {
+                String sha1 = targetCommit.getSha1ByName(fileName);
+                changes.put(fileName, new String[]{sha1, sha1});
+            }
+        }
+        return changes;
     }
 
-    private static boolean checkUntrackedFileExists(Commit curr, Commit targetCommit) {
-        boolean flag = true;
-        List<String> targetFileNames = new ArrayList<>(targetCommit.getBlobs().keySet());
-        Set<String> fileNames = new HashSet<>(curr.getBlobs().keySet());
-        for (String s : targetFileNames) {
-            if (fileNames.contains(s)) {
-                continue;
-            } else {
-                File file = getFileFromCWD(s);
-                if (!file.exists()) {
-                    continue;
-                }
-                Blob blob = new Blob(s);
-                if (blob.getSha1() != targetCommit.getBlobs().get(s)) {
-                    flag = false;
-                    break;
-                }
+    /** Returns true if working path FILENAME, where CHANGES writes a file
+     *  the current commit lacks, holds something the checkout would lose:
+     *  an untracked file, or a directory with files CHANGES does not delete. */
+    private static boolean inTheWay(String fileName, Map<String, String[]> changes) {
+        File file = getFileFromCWD(fileName);
+        if (!file.isDirectory()) {
+            return file.exists();
+        }
+        for (String path : walkWorkingFiles(file)) {
+            String[] change = changes.get(path);
+            if (change == null || change[1] != null) {
+                return true;
             }
         }
-        return flag;
+        return false;
     }
 
+    /**
+     * Returns the full SHA-1 of the commit whose id starts with COMMITID, or
+     * null if there is none. Exits with a message if more than one commit
+     * matches.
+     */
     private static String readFullCommitSha1(String commitID) {
         if (commitID.length() > Commit.SHA1_LENGTH) {
             return null;
         }
-        List<String> files = plainFilenamesIn(OBJECTS_DIR);
-        String res = null;
-        int len = commitID.length();
-        for (String s : files) {
-            if (commitID.equals(s.substring(0, len))) {
-                Serializable serializable = Utils.readObject(Utils.join(OBJECTS_DIR, s),
-                        Serializable.class);
-                if (serializable instanceof Commit) {
-                    res = s;
-                    break;
-                }
-            }
+        List<String> matches = OBJECT_STORE.resolve(commitID, ObjectStore.TYPE_COMMIT, 2);
+        if (matches.size() > 1) {
+            throw error("Ambiguous commit id.");
         }
-        return res;
+        return matches.isEmpty() ? null : matches.get(0);
     }
 
     private static void clearStage() {
@@ -690,84 +1253,121 @@ public class Repository {
         save(ADD_STAGE_FILE, addStage);
         save(REMOVE_STAGE_FILE, removeStage);
     }
-    private static void checkoutModifyWorkspace(Commit targetCommit, Commit curr) {
-        Map<String, String> targetBlobs = targetCommit.getBlobs();
-        Map<String, String> currBlobs = curr.getBlobs();
-        for (String s : targetBlobs.keySet()) {
-            File file = Utils.join(CWD, s);
-            String content = readBlobContentBySha1(targetBlobs.get(s));
-            Utils.writeContents(file, content);
-        }
-        for (String s : currBlobs.keySet()) {
-            if (!targetBlobs.containsKey(s)) {
-                File file = Utils.join(CWD, s);
-                file.delete();
+    /**
+     * Applies CHANGES (see checkoutChanges) to the working directory.
+     * Removed files are deleted first. Blobs that a blobless clone lacks
+     * are then fetched, one pack for all, before the files are written in
+     * parallel, each copied straight from its stored blob (see
+     * ObjectStore.copyBlobTo), so that no writer thread has to fetch one.
+     * Files with the same blob in both commits are not touched. If
+     * GITLET_REPORT is 1, prints how many files were written and deleted,
+     * and the number UNCHANGED of entries left as they are, a directory
+     * that is the same in both commits counting as one.
+     */
+    private static void checkoutModifyWorkspace(Map<String, String[]> changes,
+                                                int unchanged) {
+        Map<String, String> toWrite = new TreeMap<>();
+        int deleted = 0;
+        for (Map.Entry<String, String[]> change : changes.entrySet()) {
+            String sha1 = change.getValue()[1];
+            if (sha1 != null) {
+                toWrite.put(change.getKey(), sha1);
+            } else {
+                deleteWorkingFile(change.getKey());
+                deleted += 1;
             }
         }
-    }
-
-
-    private static String readBlobContentBySha1(String name) {
-        File file = Utils.join(OBJECTS_DIR, name);
-        Blob blob = readObject(file, Blob.class);
-        return blob.getBytes();
+        OBJECT_STORE.prefetch(toWrite.values());
+        for (String fileName : toWrite.keySet()) {
+            join(CWD, fileName).getParentFile().mkdirs();
+        }
+        Stats.Phase writing = Stats.phase("write");
+        try {
+            Parallel.map(toWrite.keySet(), fileName -> {
+                OBJECT_STORE.copyBlobTo(toWrite.get(fileName), join(CWD, fileName));
+                return true;
+            });
+        } finally {
+            writing.end();
+        }
+        Stats.count(Stats.Counter.FILES_WRITTEN, toWrite.size());
+        for (Map.Entry<String, String> written : toWrite.entrySet()) {
+            STAT_CACHE.record(written.getKey(), written.getValue());
+        }
+        if ("1".equals(System.getenv(REPORT_VARIABLE))) {
+            System.out.println("Wrote " + toWrite.size() + " files, deleted " + deleted
+                    + ", left " + unchanged + " unchanged.");
+        }
     }
 
     private  static Commit readCommitBySha1(String sha1) {
-        File file = Utils.join(OBJECTS_DIR, sha1);
-        return Utils.readObject(file, Commit.class);
+        return OBJECT_STORE.readCommit(sha1);
     }
 
     private static Commit getNewCommit(String message) {
-        Map<String, String> blobs = new HashMap<>(currCommit.getBlobs());
         List<String> parents = new ArrayList<>();
         parents.add(currCommit.getSha1());
-        for (Map.Entry<String, String> entry : addStage.getBlobs().entrySet()) {
-            blobs.put(entry.getKey(), entry.getValue());
+        Commit commit = new Commit(message, stagedTree(), parents);
+        saveCommit(commit);
+        return commit;
+    }
+
+    /** Returns the tree of the current commit with the staged changes applied.
+     *  Only the trees along the staged paths are rewritten, unless the
+     *  current commit has a file map instead, which is built into a tree
+     *  first. */
+    private static String stagedTree() {
+        Map<String, String> changes = new HashMap<>(addStage.getBlobs());
+        for (String fileName : removeStage.getBlobs().keySet()) {
+            changes.put(fileName, null);
         }
-        for (Map.Entry<String, String> entry : removeStage.getBlobs().entrySet()) {
-            blobs.remove(entry.getKey());
+        String root = currCommit.storedTree();
+        if (root == null) {
+            root = Tree.build(currCommit.getBlobs(), OBJECT_STORE);
+        }
+        return Tree.update(root, changes, OBJECT_STORE);
+    }
+
+    /** Deletes working file FILENAME, a path, and any directories it leaves empty. */
+    private static void deleteWorkingFile(String fileName) {
+        File file = join(CWD, fileName);
+        file.delete();
+        for (File dir = file.getParentFile(); dir != null && !dir.equals(CWD);
+                dir = dir.getParentFile()) {
+            if (!dir.delete()) {
+                break;
+            }
         }
-        Commit commit = new Commit(message, blobs, parents);
-        commit.save();
-        return commit;
     }
 
     private static void updateHEAD(String branchName) {
-        Utils.writeContents(HEAD_FILE, branchName);
+        TRANSACTION.replace(HEAD_FILE, branchName);
     }
     private static void updateCurrBranch() {
         String currBranch = readCurrBranch();
         File currBranchFile = Utils.join(HEADS_DIR, currBranch);
-        Utils.writeContents(currBranchFile, currCommit.getSha1());
+        TRANSACTION.replace(currBranchFile, currCommit.getSha1());
     }
 
-    private static void storeBlob(Blob blob) {
-        currCommit = readCurrCommit();
-        addStage = readAddStage();
-        removeStage = readRemoveStage();
-
-        blob.save();
+    /** Stages BLOB in the in-memory stages, unless it is unchanged from the
+     *  current commit, and unstages its file for removal. */
+    private static void stageBlob(Blob blob) {
         addStage.addBlob(blob);
         if (removeStage.contains(blob)) {
             removeStage.removeBlob(blob);
-            save(REMOVE_STAGE_FILE, removeStage);
         }
         if (currCommit.containsBlob(blob)) {
             addStage.removeBlob(blob);
         }
-        save(ADD_STAGE_FILE, addStage);
     }
 
-    private static void save(File file, Serializable serializable) {
-        Utils.writeObject(file, serializable);
+    private static void save(File file, Stage stage) {
+        TRANSACTION.replace(file, stage.encode());
     }
 
 
     private static Commit readCurrCommit() {
-        String currCommitSha1 = readCurrCommitSha1();
-        File currCommitFile = Utils.join(OBJECTS_DIR, currCommitSha1);
-        return Utils.readObject(currCommitFile, Commit.class);
+        return readCommitBySha1(readCurrCommitSha1());
     }
 
     private static String readCurrCommitSha1() {
@@ -784,14 +1384,14 @@ public class Repository {
         if (!ADD_STAGE_FILE.exists()) {
             return new Stage();
         }
-        return readObject(ADD_STAGE_FILE, Stage.class);
+        return Stage.decode(readContents(ADD_STAGE_FILE));
     }
 
     private static Stage readRemoveStage() {
         if (!REMOVE_STAGE_FILE.exists()) {
             return new Stage();
         }
-        return readObject(REMOVE_STAGE_FILE, Stage.class);
+        return Stage.decode(readContents(REMOVE_STAGE_FILE));
     }
 
     private static void mkdir(File file) {
@@ -804,44 +1404,52 @@ public class Repository {
     private static void initCommit() {
         Commit initCommit = new Commit();
         currCommit = initCommit;
-        initCommit.save();
+        saveCommit(initCommit);
+    }
+
+    /** Saves COMMIT and records it in the commit graph and journal. */
+    private static void saveCommit(Commit commit) {
+        commit.save();
+        COMMIT_GRAPH.add(commit);
+        COMMIT_JOURNAL.add(commit);
     }
 
     private static void initHEAD() {
-        Utils.writeContents(HEAD_FILE, "master");
+        TRANSACTION.replace(HEAD_FILE, "master");
     }
 
     private static void initHeads() {
         File masterFile = join(HEADS_DIR, "master");
-        Utils.writeContents(masterFile, currCommit.getSha1());
+        TRANSACTION.replace(masterFile, currCommit.getSha1());
     }
 
+    /** Returns NAME as a path relative to the working directory, separated by "/". */
     private static String  unifiedFileName(String name) {
-        File file = getFileFromCWD(name);
-        return file.getName();
+        Path root = CWD.toPath().toAbsolutePath().normalize();
+        Path path = getFileFromCWD(name).toPath().toAbsolutePath().normalize();
+        return root.relativize(path).toString().replace(File.separatorChar, '/');
     }
 
     private static File getFileFromCWD(String file) {
         return Paths.get(file).isAbsolute() ? new File(file) : join(CWD, file);
     }
 
+    /**
+     * used by init and clone
+     */
+    private static void checkNotInit() {
+        if (GITLET_DIR.exists()) {
+            String s = "A Gitlet version-control system already exists in the current directory.";
+            throw error(s);
+        }
+    }
+
     /**
      * used for every command except init
      */
     private static void checkInit() {
         if (!GITLET_DIR.exists()) {
-            System.out.println("Not in an initialized Gitlet directory.");
-            System.exit(0);
+            throw error("Not in an initialized Gitlet directory.");
         }
     }
-
-    public static void debug() {
-        currCommit = readCurrCommit();
-        addStage = readAddStage();
-        removeStage = readRemoveStage();
-        System.out.println(addStage.getBlobs());
-        System.out.println(removeStage.getBlobs());
-        System.out.println();
-        System.out.println(currCommit.toString());
-    }
 }
@@ -0,0 +1,277 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.function.Predicate;
+
+/**
+ * A persistent sorted set of fixed-length byte strings, compared as unsigned
+ * bytes. Most entries live in a sorted table, which is memory-mapped and
+ * binary-searched. New entries are appended to a small log next to it,
+ * which is merged into the table once it holds LOG_LIMIT entries:
+ *
+ * table:  magic | version | count | entry...
+ * log:    entry...
+ *
+ * An entry that a crash cut short at the end of the log is dropped when
+ * the log is loaded, and cut off the file, so later entries stay aligned.
+ *
+ * @author zdkk
+ */
+class SortedIndex {
+    private static final int VERSION = 1;
+    private static final int HEADER_LENGTH = 12;
+    private static final int LOG_LIMIT = 1024;
+    private static final Comparator<byte[]> ORDER = Arrays::compareUnsigned;
+
+    private final File tableFile;
+    private final File logFile;
+    private final int magic;
+    private final int entryLength;
+    private MappedByteBuffer table;
+    private int size;
+    private TreeSet<byte[]> log;
+    /** The stamp (see Utils.stamp) of the files when they were loaded. */
+    private List<Long> stamp;
+
+    /** An index of ENTRYLENGTH-byte entries kept in TABLEFILE and LOGFILE,
+     *  whose table starts with MAGIC. */
+    SortedIndex(File tableFile, File logFile, int magic, int entryLength) {
+        this.tableFile = tableFile;
+        this.logFile = logFile;
+        this.magic = magic;
+        this.entryLength = entryLength;
+    }
+
+    /** Returns true if the index has been built. */
+    boolean exists() {
+        return tableFile.isFile();
+    }
+
+    /** Replaces the whole index with ENTRIES. */
+    void build(Collection<byte[]> entries) {
+        TreeSet<byte[]> sorted = new TreeSet<>(ORDER);
+        sorted.addAll(entries);
+        writeTable(sorted);
+    }
+
+    /** Adds ENTRY, unless it is already present. */
+    void add(byte[] entry) {
+        load();
+        if (contains(entry)) {
+            return;
+        }
+        try (FileOutputStream out = new FileOutputStream(logFile, true)) {
+            out.write(entry);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        log.add(entry);
+        if (log.size() >= LOG_LIMIT) {
+            compact();
+        }
+    }
+
+    /** Returns true if ENTRY is in the index. */
+    boolean contains(byte[] entry) {
+        load();
+        int i = lowerBound(entry);
+        return log.contains(entry) || i < size && compareEntry(i, entry) == 0;
+    }
+
+    /**
+     * Returns the entries that start with the bytes written in hexadecimal as
+     * PREFIX and satisfy FILTER, in sorted order, stopping once LIMIT have
+     * been found. PREFIX may have an odd number of digits.
+     */
+    List<byte[]> find(String prefix, int limit, Predicate<byte[]> filter) {
+        load();
+        byte[] from = hexBound(prefix);
+        byte[] to = hexBound(hexSuccessor(prefix));
+        List<byte[]> result = new ArrayList<>();
+        for (int i = lowerBound(from); i < size && result.size() < limit; i += 1) {
+            if (to != null && compareEntry(i, to) >= 0) {
+                break;
+            }
+            byte[] entry = entry(i);
+            if (filter.test(entry)) {
+                result.add(entry);
+            }
+        }
+        SortedSet<byte[]> logged = to == null ? log.tailSet(from) : log.subSet(from, to);
+        for (byte[] entry : logged) {
+            if (filter.test(entry)) {
+                result.add(entry);
+            }
+        }
+        result.sort(ORDER);
+        return result.size() > limit ? result.subList(0, limit) : result;
+    }
+
+    /** Merges the log into the sorted table. */
+    void compact() {
+        load();
+        if (log.isEmpty()) {
+            return;
+        }
+        TreeSet<byte[]> all = new TreeSet<>(log);
+        for (int i = 0; i < size; i += 1) {
+            all.add(entry(i));
+        }
+        writeTable(all);
+    }
+
+    /** Writes SORTED as the new table and empties the log. The table is
+     *  renamed into place before the log is removed, so an interrupted
+     *  compaction leaves at worst entries that are in both. */
+    private void writeTable(SortedSet<byte[]> sorted) {
+        File temp = Utils.join(tableFile.getParentFile(), tableFile.getName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(magic);
+            out.writeInt(VERSION);
+            out.writeInt(sorted.size());
+            for (byte[] entry : sorted) {
+                out.write(entry);
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        try {
+            Files.move(temp.toPath(), tableFile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        logFile.delete();
+        table = null;
+        log = null;
+    }
+
+    /** Drops the loaded table and log if another process has changed
+     *  them since, so that they are loaded again on next use. */
+    void refresh() {
+        if (log != null && !Utils.stamp(tableFile, logFile).equals(stamp)) {
+            table = null;
+            log = null;
+        }
+    }
+
+    /** Maps the table and reads the log, ignoring a log entry cut short by
+     *  an interrupted append and entries left over from an interrupted
+     *  compaction. */
+    private void load() {
+        if (log != null) {
+            return;
+        }
+        log = new TreeSet<>(ORDER);
+        size = 0;
+        stamp = Utils.stamp(tableFile, logFile);
+        if (tableFile.isFile()) {
+            try (FileChannel channel = FileChannel.open(tableFile.toPath(),
+                    StandardOpenOption.READ)) {
+                table = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+            if (table.limit() < HEADER_LENGTH || table.getInt(0) != magic
+                    || table.getInt(4) != VERSION) {
+                throw Utils.error("Corrupt index %s.", tableFile.getName());
+            }
+            size = table.getInt(8);
+        }
+        if (logFile.isFile()) {
+            ByteBuffer buf = ByteBuffer.wrap(Utils.readContents(logFile));
+            while (buf.remaining() >= entryLength) {
+                byte[] entry = new byte[entryLength];
+                buf.get(entry);
+                int i = lowerBound(entry);
+                if (i == size || compareEntry(i, entry) != 0) {
+                    log.add(entry);
+                }
+            }
+            if (buf.hasRemaining()) {
+                try (RandomAccessFile out = new RandomAccessFile(logFile, "rw")) {
+                    out.setLength(buf.position());
+                } catch (IOException excp) {
+                    throw new IllegalArgumentException(excp.getMessage());
+                }
+                stamp = Utils.stamp(tableFile, logFile);
+            }
+        }
+    }
+
+    /** Returns the number of the first table entry not less than KEY. */
+    private int lowerBound(byte[] key) {
+        int lo = 0;
+        int hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (compareEntry(mid, key) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    private int compareEntry(int i, byte[] key) {
+        int pos = HEADER_LENGTH + i * entryLength;
+        for (int j = 0; j < entryLength; j += 1) {
+            int cmp = Integer.compare(table.get(pos + j) & 0xff, key[j] & 0xff);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return 0;
+    }
+
+    private byte[] entry(int i) {
+        byte[] result = new byte[entryLength];
+        table.get(HEADER_LENGTH + i * entryLength, result);
+        return result;
+    }
+
+    /** Returns the entry whose hexadecimal form is HEX padded with zeros,
+     *  or null if HEX is null. */
+    private byte[] hexBound(String hex) {
+        if (hex == null) {
+            return null;
+        }
+        StringBuilder padded = new StringBuilder(hex);
+        while (padded.length() < 2 * entryLength) {
+            padded.append('0');
+        }
+        byte[] result = new byte[entryLength];
+        for (int i = 0; i < entryLength; i += 1) {
+            result[i] = (byte) Integer.parseInt(padded.substring(2 * i, 2 * i + 2), 16);
+        }
+        return result;
+    }
+
+    /** Returns the hexadecimal numeral of the same length that follows HEX,
+     *  or null if HEX is all f's. */
+    private static String hexSuccessor(String hex) {
+        char[] digits = hex.toCharArray();
+        for (int i = digits.length - 1; i >= 0; i -= 1) {
+            if (digits[i] != 'f') {
+                digits[i] = Character.forDigit(Character.digit(digits[i], 16) + 1, 16);
+                return new String(digits);
+            }
+            digits[i] = '0';
+        }
+        return null;
+    }
+}
@@ -1,18 +1,71 @@
 package gitlet;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.io.Serializable;
-import java.io.File;
 import java.util.*;
 
+/**
+ * The files staged for addition or for removal. A stage file is stored in a
+ * binary format (see Codec):
+ *
+ * stage:  "stage\0" | version (1) | file count (4) | (file name | blob sha1)...
+ *
+ * Stages written by older versions are serialized Java objects, which are
+ * still read.
+ *
+ * @author zdkk
+ */
 public class Stage implements Serializable {
+    /** Keeps stages serialized by older versions readable. */
+    private static final long serialVersionUID = -2235583546845118015L;
+    private static final String KIND = "stage";
 
     // filename-sha1
     private Map<String, String> blobs = new HashMap<>();
 
 
+    /** Returns the stored form of this stage. */
+    byte[] encode() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = Codec.writer(bytes, KIND)) {
+            out.writeInt(blobs.size());
+            for (Map.Entry<String, String> blob : blobs.entrySet()) {
+                Codec.writeString(out, blob.getKey());
+                Codec.writeSha1(out, blob.getValue());
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        return bytes.toByteArray();
+    }
+
+    /** Returns the stage whose stored bytes are DATA, in either format. */
+    static Stage decode(byte[] data) {
+        if (!isEncoded(data)) {
+            return Utils.deserialize(Utils.decode(data), Stage.class);
+        }
+        Stage stage = new Stage();
+        try (DataInputStream in = Codec.reader(data, KIND)) {
+            int count = in.readInt();
+            for (int i = 0; i < count; i += 1) {
+                stage.blobs.put(Codec.readString(in), Codec.readSha1(in));
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        return stage;
+    }
+
+    /** Returns true if DATA is a stage in the binary format. */
+    static boolean isEncoded(byte[] data) {
+        return Codec.isEncoded(data, KIND);
+    }
+
     public static Blob getBlobBySha1(String sha1) {
-        File file = Utils.join(Repository.OBJECTS_DIR, sha1);
-        return Utils.readObject(file, Blob.class);
+        return Repository.OBJECT_STORE.readBlob(sha1);
     }
 
     public Map<String, String> getBlobs() {
@@ -0,0 +1,243 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers, for each working file that has been hashed, its size,
+ * modification time and file key (device and inode) at the time, along
+ * with its blob SHA-1. A file whose stat data still matches is not read
+ * again, so status on an unchanged tree costs one stat per file.
+ *
+ * stat-cache:  magic | version | entry...
+ * entry:       name (UTF) | size (8) | mtime in ns (8) | file key (UTF) | sha1 (20 bytes)
+ *
+ * As in git, an entry is only trusted if the file's mtime is older than the
+ * cache file itself: a file modified in the same clock tick as it was hashed
+ * could have changed without its stat data showing it, so it is hashed again.
+ *
+ * @author zdkk
+ */
+class StatCache {
+    private static final int MAGIC = 0x47535443;  // "GSTC"
+    private static final int VERSION = 1;
+
+    private final File file;
+    private final File workDir;
+    private Map<String, Entry> entries;
+    private long cacheTime;
+    private boolean dirty;
+    /** The stamp (see Utils.stamp) of the cache file when it was last read
+     *  or written here. */
+    private List<Long> stamp;
+
+    StatCache(File gitletDir, File workDir) {
+        this.file = Utils.join(gitletDir, "stat-cache");
+        this.workDir = workDir;
+    }
+
+    /** Drops the loaded entries if another process has saved the cache
+     *  since they were read. */
+    void refresh() {
+        if (entries != null && !Utils.stamp(file).equals(stamp)) {
+            entries = null;
+            dirty = false;
+        }
+    }
+
+    /** Returns the blob SHA-1 of working file FILENAME if its stat data is
+     *  unchanged since it was last hashed, and null otherwise. */
+    String cachedSha1(String fileName) {
+        load();
+        Entry cached = entries.get(fileName);
+        if (cached == null) {
+            return null;
+        }
+        Entry current = stat(fileName, cached.sha1);
+        if (current == null || !current.sameStat(cached) || current.mtime >= cacheTime) {
+            return null;
+        }
+        Stats.count(Stats.Counter.STAT_CACHE_HITS);
+        return cached.sha1;
+    }
+
+    /** Returns the blob SHA-1 of working file FILENAME, which must exist,
+     *  hashing the file only if its stat data has changed. */
+    String sha1(String fileName) {
+        return sha1s(Collections.singletonList(fileName)).get(fileName);
+    }
+
+    /**
+     * Returns the blob SHA-1s of working files FILENAMES, which must exist,
+     * keyed by name. Files whose stat data has changed are hashed in
+     * parallel (see Parallel); the result is the same as hashing them one
+     * at a time.
+     */
+    Map<String, String> sha1s(Collection<String> fileNames) {
+        load();
+        Map<String, String> result = new HashMap<>();
+        List<String> stale = new ArrayList<>();
+        for (String fileName : fileNames) {
+            String sha1 = cachedSha1(fileName);
+            if (sha1 != null) {
+                result.put(fileName, sha1);
+            } else {
+                stale.add(fileName);
+            }
+        }
+        Map<String, Entry> hashes;
+        Stats.Phase hashing = Stats.phase("hash");
+        try {
+            hashes = Parallel.map(stale, this::hash);
+        } finally {
+            hashing.end();
+        }
+        for (Map.Entry<String, Entry> hashed : hashes.entrySet()) {
+            Entry entry = hashed.getValue();
+            if (entry.size >= 0) {
+                put(hashed.getKey(), entry);
+            }
+            result.put(hashed.getKey(), entry.sha1);
+        }
+        return result;
+    }
+
+    /** Records that working file FILENAME, as it is now, has blob SHA1. */
+    void record(String fileName, String sha1) {
+        load();
+        Entry current = stat(fileName, sha1);
+        if (current != null) {
+            put(fileName, current);
+        }
+    }
+
+    /** Writes the cache back if anything was recorded since it was read. */
+    void save() {
+        if (!dirty) {
+            return;
+        }
+        File temp = Utils.join(file.getParentFile(), file.getName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                Entry entry = e.getValue();
+                out.writeUTF(e.getKey());
+                out.writeLong(entry.size);
+                out.writeLong(entry.mtime);
+                out.writeUTF(entry.fileKey);
+                out.write(Utils.sha1ToBytes(entry.sha1));
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        try {
+            Files.move(temp.toPath(), file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            cacheTime = Files.getLastModifiedTime(file.toPath()).to(TimeUnit.NANOSECONDS);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        stamp = Utils.stamp(file);
+        dirty = false;
+    }
+
+    private void put(String fileName, Entry entry) {
+        entries.put(fileName, entry);
+        dirty = true;
+    }
+
+    /** Hashes working file FILENAME, returning its SHA-1 with the stat data
+     *  it had before it was read, or with size -1 if it could not be stat'ed.
+     *  Only reads shared state, so it may run on several threads at once. */
+    private Entry hash(String fileName) {
+        Entry before = stat(fileName, null);
+        String sha1 = new Blob(fileName).getSha1();
+        Stats.count(Stats.Counter.FILES_HASHED);
+        if (before == null) {
+            return new Entry(-1, 0, "", sha1);
+        }
+        return new Entry(before.size, before.mtime, before.fileKey, sha1);
+    }
+
+    /** Returns the stat data of working file FILENAME paired with SHA1, or
+     *  null if it does not exist. */
+    private Entry stat(String fileName, String sha1) {
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(
+                    Utils.join(workDir, fileName).toPath(), BasicFileAttributes.class);
+            Object key = attrs.fileKey();
+            return new Entry(attrs.size(), attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS),
+                    key == null ? "" : key.toString(), sha1);
+        } catch (NoSuchFileException excp) {
+            return null;
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Reads the cache, ignoring an entry cut short. A missing or
+     *  unreadable cache is simply empty. */
+    private void load() {
+        if (entries != null) {
+            return;
+        }
+        entries = new HashMap<>();
+        stamp = Utils.stamp(file);
+        if (!file.isFile()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)))) {
+            cacheTime = Files.getLastModifiedTime(file.toPath()).to(TimeUnit.NANOSECONDS);
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return;
+            }
+            byte[] sha1 = new byte[Utils.UID_LENGTH / 2];
+            while (true) {
+                String name = in.readUTF();
+                long size = in.readLong();
+                long mtime = in.readLong();
+                String fileKey = in.readUTF();
+                in.readFully(sha1);
+                entries.put(name, new Entry(size, mtime, fileKey, Utils.bytesToSha1(sha1)));
+            }
+        } catch (EOFException excp) {
+            return;
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    private static class Entry {
+        private final long size;
+        private final long mtime;
+        private final String fileKey;
+        private final String sha1;
+
+        Entry(long size, long mtime, String fileKey, String sha1) {
+            this.size = size;
+            this.mtime = mtime;
+            this.fileKey = fileKey;
+            this.sha1 = sha1;
+        }
+
+        boolean sameStat(Entry other) {
+            return size == other.size && mtime == other.mtime && fileKey.equals(other.fileKey);
+        }
+    }
+}
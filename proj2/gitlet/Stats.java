@@ -0,0 +1,181 @@
+package gitlet;
+
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Opt-in metrics of one gitlet command: the wall time of the command and of
+ * its phases, and counters of the work it did. A command run with --stats
+ * among its arguments, or with the GITLET_TRACE environment variable set to
+ * 1, prints them when it finishes as one line of JSON on standard error, so
+ * its normal output is unchanged:
+ *
+ * {"command":"status","millis":41.2,
+ *  "phases":{"modified":{"millis":30.1,"calls":1},...},
+ *  "counters":{"objectReads":3,...}}
+ *
+ * Phases are timed around the work they name, on the thread running the
+ * command, from phase() to the end() in the finally block that follows,
+ * and nested phases are counted in the phases that contain them.
+ * Counters may be updated from several threads at once. When metrics are
+ * off, counting costs one volatile read.
+ *
+ * @author zdkk
+ */
+class Stats {
+    /** Environment variable that turns metrics on for every command when 1. */
+    static final String TRACE_VARIABLE = "GITLET_TRACE";
+    /** The argument that turns metrics on for one command. */
+    static final String FLAG = "--stats";
+
+    /** The work counted, each under its name in the JSON output. */
+    enum Counter {
+        OBJECT_READS("objectReads"),
+        OBJECT_BYTES_READ("objectBytesRead"),
+        OBJECT_WRITES("objectWrites"),
+        OBJECT_BYTES_WRITTEN("objectBytesWritten"),
+        BYTES_HASHED("bytesHashed"),
+        CACHE_HITS("cacheHits"),
+        CACHE_MISSES("cacheMisses"),
+        STAT_CACHE_HITS("statCacheHits"),
+        FILES_HASHED("filesHashed"),
+        FILES_WRITTEN("filesWritten"),
+        DIRECTORY_LISTINGS("directoryListings");
+
+        private final String key;
+
+        Counter(String key) {
+            this.key = key;
+        }
+    }
+
+    /** The time spent in one phase, and how often it was entered. */
+    private static class Timing {
+        private long nanos;
+        private int calls;
+    }
+
+    /** A phase being timed, ended by end(). */
+    static class Phase {
+        private final String name;
+        private final long start;
+
+        private Phase(String name) {
+            this.name = name;
+            this.start = System.nanoTime();
+        }
+
+        void end() {
+            if (name != null) {
+                Timing timing = PHASES.computeIfAbsent(name, k -> new Timing());
+                timing.nanos += System.nanoTime() - start;
+                timing.calls += 1;
+            }
+        }
+    }
+
+    private static final Phase NO_PHASE = new Phase(null);
+    private static final Map<String, Timing> PHASES = new LinkedHashMap<>();
+    private static final LongAdder[] COUNTERS = new LongAdder[Counter.values().length];
+
+    static {
+        for (int i = 0; i < COUNTERS.length; i += 1) {
+            COUNTERS[i] = new LongAdder();
+        }
+    }
+
+    private static volatile boolean enabled;
+    private static long start;
+
+    /** Returns ARGS with FLAG added if GITLET_TRACE asks for metrics, so
+     *  that a daemon running the command reports them as well. */
+    static String[] fromEnvironment(String[] args) {
+        if (!"1".equals(System.getenv(TRACE_VARIABLE)) || Arrays.asList(args).contains(FLAG)) {
+            return args;
+        }
+        String[] result = Arrays.copyOf(args, args.length + 1);
+        result[args.length] = FLAG;
+        return result;
+    }
+
+    /** Starts the metrics of the command ARGS, turning them on if FLAG is
+     *  among ARGS, and returns ARGS without it. */
+    static String[] begin(String[] args) {
+        List<String> command = new ArrayList<>(Arrays.asList(args));
+        enabled = command.removeAll(Collections.singleton(FLAG));
+        PHASES.clear();
+        for (LongAdder counter : COUNTERS) {
+            counter.reset();
+        }
+        start = System.nanoTime();
+        return command.toArray(new String[0]);
+    }
+
+    /** Prints the metrics of the command ARGS to standard error, if they are
+     *  on, and turns them off. */
+    static void end(String[] args) {
+        if (!enabled) {
+            return;
+        }
+        enabled = false;
+        String name = args.length > 0 ? args[0] : "";
+        StringBuilder json = new StringBuilder();
+        json.append("{\"command\":").append(quote(name))
+                .append(",\"millis\":").append(millis(System.nanoTime() - start))
+                .append(",\"phases\":{");
+        String separator = "";
+        for (Map.Entry<String, Timing> phase : PHASES.entrySet()) {
+            json.append(separator).append(quote(phase.getKey()))
+                    .append(":{\"millis\":").append(millis(phase.getValue().nanos))
+                    .append(",\"calls\":").append(phase.getValue().calls).append('}');
+            separator = ",";
+        }
+        json.append("},\"counters\":{");
+        separator = "";
+        for (Counter counter : Counter.values()) {
+            json.append(separator).append(quote(counter.key)).append(':')
+                    .append(COUNTERS[counter.ordinal()].sum());
+            separator = ",";
+        }
+        json.append("}}");
+        System.err.println(json);
+        System.err.flush();
+    }
+
+    /** Starts timing phase NAME; calling end() on the result ends it. */
+    static Phase phase(String name) {
+        return enabled ? new Phase(name) : NO_PHASE;
+    }
+
+    /** Adds one to COUNTER. */
+    static void count(Counter counter) {
+        if (enabled) {
+            COUNTERS[counter.ordinal()].increment();
+        }
+    }
+
+    /** Adds AMOUNT to COUNTER. */
+    static void count(Counter counter, long amount) {
+        if (enabled) {
+            COUNTERS[counter.ordinal()].add(amount);
+        }
+    }
+
+    private static String millis(long nanos) {
+        return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+    }
+
+    private static String quote(String s) {
+        StringBuilder result = new StringBuilder("\"");
+        for (char c : s.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                result.append('\\').append(c);
+            } else if (c < 0x20) {
+                result.append(String.format("\\u%04x", (int) c));
+            } else {
+                result.append(c);
+            }
+        }
+        return result.append('"').toString();
+    }
+}
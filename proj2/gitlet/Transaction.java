@@ -0,0 +1,197 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Makes every gitlet command an all-or-nothing update of its repository, as
+ * far as a crash or another gitlet process can tell.
+ *
+ * A command runs holding an exclusive lock on .gitlet/lock, so commands on
+ * one repository run one at a time whichever processes they come from. The
+ * lock belongs to the process, so one that dies never leaves it held.
+ *
+ * Objects are named by their contents and written to a temporary file that
+ * is renamed into place, so writing one never harms the repository. What
+ * makes them part of it are the refs and stages, which replace() updates
+ * ahead of any reader: the new contents go to a temporary file in
+ * .gitlet/tmp, where no listing of refs or objects looks, every
+ * object file written since the last replace is forced to disk (all at
+ * once, in parallel, rather than one fsync per object as it is written),
+ * then the temporary file is forced, renamed over the old one, and its
+ * directory forced so the rename itself survives a crash. A ref is thus
+ * always either the old one or the new one, and never names an object that
+ * is not on disk. The append-only indexes (commit graph, journal, and the
+ * logs of the prefix and message indexes) are not forced: a crash can only
+ * cut off their last record, which each of them drops on reading and cuts
+ * off the file before appending again (see CommitGraph.load,
+ * CommitJournal.truncateTorn, SortedIndex.load).
+ *
+ * Setting the GITLET_FSYNC environment variable to 0 skips the forcing,
+ * keeping only the atomic renames, which protect against a crash of gitlet
+ * but not of the machine.
+ *
+ * @author zdkk
+ */
+class Transaction {
+    /** Environment variable that turns forcing writes to disk off when 0. */
+    static final String FSYNC_VARIABLE = "GITLET_FSYNC";
+    /** How often begin(timeout) tries the lock again. */
+    private static final long LOCK_POLL_MILLIS = 20;
+
+    private final File gitletDir;
+    private final File lockFile;
+    /** Where replace() writes new contents before renaming them into place. */
+    private final File tempDir;
+    private final boolean fsync;
+    /** Files written since the last replace, to be forced before the next.
+     *  Objects are written from several threads at once. */
+    private final Set<String> pending = ConcurrentHashMap.newKeySet();
+    private RandomAccessFile lockHandle;
+    private FileLock lock;
+
+    Transaction(File gitletDir) {
+        this.gitletDir = gitletDir;
+        this.lockFile = Utils.join(gitletDir, "lock");
+        this.tempDir = Utils.join(gitletDir, "tmp");
+        this.fsync = !"0".equals(System.getenv(FSYNC_VARIABLE));
+    }
+
+    /** Waits for any command running on the repository to finish, and takes
+     *  the lock. Returns false, without locking, if there is no repository. */
+    boolean begin() {
+        if (!gitletDir.isDirectory()) {
+            return false;
+        }
+        try {
+            lockHandle = new RandomAccessFile(lockFile, "rw");
+            lock = lockHandle.getChannel().lock();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        return true;
+    }
+
+    /**
+     * Takes the lock like begin(), but waits at most TIMEOUT milliseconds
+     * for it. Returns false, without locking, if there is no repository or
+     * it stays locked. A command holding the lock of its own repository
+     * locks a remote with this, so that two commands locking the same two
+     * repositories in opposite orders cannot wait for each other forever.
+     */
+    boolean begin(long timeout) {
+        if (!gitletDir.isDirectory()) {
+            return false;
+        }
+        long deadline = System.currentTimeMillis() + timeout;
+        try {
+            lockHandle = new RandomAccessFile(lockFile, "rw");
+            while (true) {
+                lock = lockHandle.getChannel().tryLock();
+                if (lock != null) {
+                    return true;
+                }
+                if (System.currentTimeMillis() >= deadline) {
+                    break;
+                }
+                Thread.sleep(LOCK_POLL_MILLIS);
+            }
+        } catch (IOException excp) {
+            end();
+            throw new IllegalArgumentException(excp.getMessage());
+        } catch (InterruptedException excp) {
+            Thread.currentThread().interrupt();
+        }
+        end();
+        return false;
+    }
+
+    /** Releases the lock taken by begin(). Files written since the last
+     *  replace are left to the operating system, since nothing refers to
+     *  them. */
+    void end() {
+        pending.clear();
+        try {
+            if (lock != null) {
+                lock.release();
+            }
+            if (lockHandle != null) {
+                lockHandle.close();
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        } finally {
+            lock = null;
+            lockHandle = null;
+        }
+    }
+
+    /** Records that FILE was written in full and must be on disk before
+     *  the next ref or stage that may refer to it is replaced. */
+    void written(File file) {
+        if (fsync) {
+            pending.add(file.getPath());
+        }
+    }
+
+    /** Replaces the contents of FILE with the concatenation of CONTENTS,
+     *  each a String or a byte array, as described above. */
+    void replace(File file, Object... contents) {
+        File temp;
+        try {
+            tempDir.mkdir();
+            temp = File.createTempFile(file.getName() + ".new-", ".tmp", tempDir);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        Utils.writeContents(temp, contents);
+        try {
+            if (fsync) {
+                pending.add(temp.getPath());
+                sync();
+            }
+            Files.move(temp.toPath(), file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            if (fsync) {
+                force(file.getParentFile());
+            }
+        } catch (IOException excp) {
+            temp.delete();
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Forces the files written so far, and the directories they are in,
+     *  to disk. */
+    void sync() {
+        List<String> files = new ArrayList<>(pending);
+        Set<String> dirs = new TreeSet<>();
+        for (String path : files) {
+            dirs.add(new File(path).getParent());
+        }
+        Parallel.map(files, path -> force(new File(path)));
+        Parallel.map(dirs, path -> force(new File(path)));
+        pending.removeAll(files);
+    }
+
+    /** Forces FILE, a file or a directory, to disk, and returns true. Some
+     *  systems cannot open a directory to force it; they are skipped. */
+    private static boolean force(File file) {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException excp) {
+            if (!file.isDirectory()) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+        }
+        return true;
+    }
+}
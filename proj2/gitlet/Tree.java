@@ -0,0 +1,514 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.function.Predicate;
+
+/**
+ * A directory of a commit: the files directly in it, each named by its blob
+ * SHA-1, and its subdirectories, each named by the SHA-1 of its own tree.
+ * A tree is named by the SHA-1 of its stored bytes, so a directory that did
+ * not change between two commits is the same object in both, and updating
+ * a commit only writes the trees along the changed paths.
+ *
+ * A directory of up to LEAF_LIMIT entries is stored as one leaf:
+ *
+ * leaf:   "tree\0" | entry...
+ * entry:  kind ('f' or 'd') | name (UTF-8) | \0 | sha1 (20 bytes)
+ *
+ * Entries are sorted by name. A larger directory is stored as a hash trie
+ * (HAMT): its entries are spread over up to 32 children by 5 bits of the
+ * hash of their names, and each child is again a leaf or a trie, using the
+ * next 5 bits:
+ *
+ * trie:   "trie\0" | depth (1) | entry count (4) | bitmap (4) | child sha1 (20)...
+ *
+ * with one child for each bit set in the bitmap. Changing one file in a
+ * directory of n entries then rewrites O(log n) nodes of bounded size, not
+ * the whole directory. The shape only depends on the entries, so equal
+ * directories still have equal SHA-1s.
+ *
+ * Paths passed to and returned by the static methods are relative to the
+ * working directory and separated by "/".
+ *
+ * @author zdkk
+ */
+class Tree {
+    private static final byte[] LEAF = "tree\0".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] TRIE = "trie\0".getBytes(StandardCharsets.UTF_8);
+    private static final byte FILE = 'f';
+    private static final byte DIR = 'd';
+    private static final int SHA1_BYTES = Utils.UID_LENGTH / 2;
+    /** Directories with more entries than this are split into a trie. */
+    private static final int LEAF_LIMIT = 256;
+    private static final int BITS = 5;
+    /** Below this depth the hash bits run out, and nodes are leaves whatever their size. */
+    private static final int MAX_DEPTH = 32 / BITS;
+
+    /** A directory entry: a file or a subdirectory, and its SHA-1. */
+    private static class Entry {
+        private final byte kind;
+        private final String sha1;
+
+        Entry(byte kind, String sha1) {
+            this.kind = kind;
+            this.sha1 = sha1;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Entry && ((Entry) o).kind == kind
+                    && ((Entry) o).sha1.equals(sha1);
+        }
+
+        @Override
+        public int hashCode() {
+            return sha1.hashCode() + kind;
+        }
+    }
+
+    /** The result of updating a node: its new SHA-1 (null if it became
+     *  empty) and its entry counts before and after. */
+    private static class Update {
+        private final String sha1;
+        private final int oldCount;
+        private final int newCount;
+
+        Update(String sha1, int oldCount, int newCount) {
+            this.sha1 = sha1;
+            this.oldCount = oldCount;
+            this.newCount = newCount;
+        }
+    }
+
+    /** Returns the root tree of the commit whose files are FILES, a map from
+     *  path to blob SHA-1, writing any tree not already in STORE. */
+    static String build(Map<String, String> files, ObjectStore store) {
+        return update(null, files, store);
+    }
+
+    /**
+     * Returns the root tree obtained from tree ROOT (null for an empty one)
+     * by applying CHANGES, a map from path to the new blob SHA-1 or to null
+     * for a removed file. Only the nodes along the changed paths are read
+     * and written; directories left empty disappear.
+     */
+    static String update(String root, Map<String, String> changes, ObjectStore store) {
+        String result = updateDir(root, changes, store);
+        return result != null ? result : writeLeaf(new TreeMap<>(), store);
+    }
+
+    /** Returns the blob SHA-1 of file PATH in tree ROOT, or null if there is
+     *  no such file. Reads only the nodes on the way to PATH. */
+    static String lookup(String root, String path, ObjectStore store) {
+        String[] names = path.split("/");
+        String sha1 = root;
+        for (int i = 0; i < names.length; i += 1) {
+            Entry entry = get(sha1, names[i], store);
+            byte kind = i == names.length - 1 ? FILE : DIR;
+            if (entry == null || entry.kind != kind) {
+                return null;
+            }
+            sha1 = entry.sha1;
+        }
+        return sha1;
+    }
+
+    /** Returns every file in tree ROOT, as a map from path to blob SHA-1. */
+    static Map<String, String> flatten(String root, ObjectStore store) {
+        Map<String, String> result = new HashMap<>();
+        flatten(root, "", store, result);
+        return result;
+    }
+
+    /**
+     * Returns the files that differ between trees FROM and TO, as a map from
+     * path to a pair {blob SHA-1 in FROM, blob SHA-1 in TO}, either of which
+     * is null if the file is missing from that side. Nodes with equal
+     * SHA-1s are skipped without being read, so the cost follows the size of
+     * the change rather than the size of the trees. Adds to UNCHANGED[0] the
+     * number of entries of TO that are the same in FROM: files, and whole
+     * directories, which count as one entry each.
+     */
+    static Map<String, String[]> diff(String from, String to, ObjectStore store,
+                                      int[] unchanged) {
+        Map<String, String[]> result = new TreeMap<>();
+        diff(from, to, "", store, result, unchanged);
+        return result;
+    }
+
+    /** Returns the same as diff, for two commits whose files are the maps
+     *  FROM and TO, from path to blob SHA-1, rather than trees. Adds the
+     *  number of files that are the same in both to UNCHANGED[0]. */
+    static Map<String, String[]> diffFiles(Map<String, String> from, Map<String, String> to,
+                                           int[] unchanged) {
+        Map<String, String[]> result = new TreeMap<>();
+        for (Map.Entry<String, String> file : from.entrySet()) {
+            String sha1 = to.get(file.getKey());
+            if (!file.getValue().equals(sha1)) {
+                result.put(file.getKey(), new String[]{file.getValue(), sha1});
+            } else {
+                unchanged[0] += 1;
+            }
+        }
+        for (Map.Entry<String, String> file : to.entrySet()) {
+            if (!from.containsKey(file.getKey())) {
+                result.put(file.getKey(), new String[]{null, file.getValue()});
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Puts into OBJECTS, with their types, the nodes of tree ROOT in STORE
+     * and the blobs they name, leaving out those for which KNOWN holds. A
+     * node that is known is not read, since everything below it is known
+     * as well, so the cost follows the part of the tree that is new.
+     */
+    static void collect(String root, ObjectStore store, Predicate<String> known,
+                        Map<String, Byte> objects) {
+        if (objects.containsKey(root) || known.test(root)) {
+            return;
+        }
+        objects.put(root, ObjectStore.TYPE_TREE);
+        byte[] data = store.readDecoded(root);
+        if (startsWith(data, TRIE)) {
+            for (String child : readChildren(data).values()) {
+                collect(child, store, known, objects);
+            }
+            return;
+        }
+        for (Entry entry : readLeaf(root, data).values()) {
+            if (entry.kind == DIR) {
+                collect(entry.sha1, store, known, objects);
+            } else if (!objects.containsKey(entry.sha1) && !known.test(entry.sha1)) {
+                objects.put(entry.sha1, ObjectStore.TYPE_BLOB);
+            }
+        }
+    }
+
+    /** Returns true if DATA is a stored tree node. */
+    static boolean isTree(byte[] data) {
+        return startsWith(data, LEAF) || startsWith(data, TRIE);
+    }
+
+    /* DIRECTORIES */
+
+    private static String updateDir(String sha1, Map<String, String> changes, ObjectStore store) {
+        Map<String, Entry> entryChanges = new HashMap<>();
+        Map<String, Map<String, String>> subChanges = new TreeMap<>();
+        for (Map.Entry<String, String> change : changes.entrySet()) {
+            String path = change.getKey();
+            int slash = path.indexOf('/');
+            if (slash < 0) {
+                entryChanges.put(path, change.getValue() == null
+                        ? null : new Entry(FILE, change.getValue()));
+            } else {
+                subChanges.computeIfAbsent(path.substring(0, slash), k -> new HashMap<>())
+                        .put(path.substring(slash + 1), change.getValue());
+            }
+        }
+        for (Map.Entry<String, Map<String, String>> sub : subChanges.entrySet()) {
+            String name = sub.getKey();
+            Entry old = sha1 == null ? null : get(sha1, name, store);
+            String oldDir = old != null && old.kind == DIR ? old.sha1 : null;
+            String newDir = updateDir(oldDir, sub.getValue(), store);
+            if (newDir != null) {
+                entryChanges.put(name, new Entry(DIR, newDir));
+            } else if (oldDir != null && !entryChanges.containsKey(name)) {
+                // unless a file replaces the directory
+                entryChanges.put(name, null);
+            }
+        }
+        return put(sha1, 0, entryChanges, store).sha1;
+    }
+
+    private static void flatten(String sha1, String prefix, ObjectStore store,
+                                Map<String, String> result) {
+        for (Map.Entry<String, Entry> e : entries(sha1, store).entrySet()) {
+            if (e.getValue().kind == FILE) {
+                result.put(prefix + e.getKey(), e.getValue().sha1);
+            } else {
+                flatten(e.getValue().sha1, prefix + e.getKey() + "/", store, result);
+            }
+        }
+    }
+
+    private static void diff(String from, String to, String prefix, ObjectStore store,
+                             Map<String, String[]> result, int[] unchanged) {
+        Map<String, Entry[]> changed = new TreeMap<>();
+        diffNodes(from, to, store, changed);
+        unchanged[0] += count(to, store);
+        for (Map.Entry<String, Entry[]> change : changed.entrySet()) {
+            if (change.getValue()[1] != null) {
+                unchanged[0] -= 1;
+            }
+        }
+        for (Map.Entry<String, Entry[]> change : changed.entrySet()) {
+            String path = prefix + change.getKey();
+            Entry a = change.getValue()[0];
+            Entry b = change.getValue()[1];
+            String fileA = a != null && a.kind == FILE ? a.sha1 : null;
+            String fileB = b != null && b.kind == FILE ? b.sha1 : null;
+            if (fileA != null || fileB != null) {
+                result.put(path, new String[]{fileA, fileB});
+            }
+            String dirA = a != null && a.kind == DIR ? a.sha1 : null;
+            String dirB = b != null && b.kind == DIR ? b.sha1 : null;
+            if (dirA != null || dirB != null) {
+                diff(dirA, dirB, path + "/", store, result, unchanged);
+            }
+        }
+    }
+
+    /* NODES */
+
+    /** Returns the entry NAME of the directory whose node is SHA1, or null. */
+    private static Entry get(String sha1, String name, ObjectStore store) {
+        int hash = hash(name);
+        while (true) {
+            byte[] data = store.readDecoded(sha1);
+            if (!startsWith(data, TRIE)) {
+                return readLeaf(sha1, data).get(name);
+            }
+            ByteBuffer trie = ByteBuffer.wrap(data);
+            int bucket = bucket(hash, trie.get(TRIE.length));
+            String child = readChildren(data).get(bucket);
+            if (child == null) {
+                return null;
+            }
+            sha1 = child;
+        }
+    }
+
+    /** Returns the number of entries of the directory whose node is SHA1
+     *  (null for an empty one), reading only that node. */
+    private static int count(String sha1, ObjectStore store) {
+        if (sha1 == null) {
+            return 0;
+        }
+        byte[] data = store.readDecoded(sha1);
+        if (startsWith(data, TRIE)) {
+            return ByteBuffer.wrap(data).getInt(TRIE.length + 1);
+        }
+        return readLeaf(sha1, data).size();
+    }
+
+    /** Returns all entries of the directory whose node is SHA1. */
+    private static SortedMap<String, Entry> entries(String sha1, ObjectStore store) {
+        byte[] data = store.readDecoded(sha1);
+        if (!startsWith(data, TRIE)) {
+            return readLeaf(sha1, data);
+        }
+        SortedMap<String, Entry> result = new TreeMap<>();
+        for (String child : readChildren(data).values()) {
+            result.putAll(entries(child, store));
+        }
+        return result;
+    }
+
+    /**
+     * Applies CHANGES, a map from name to the new entry or to null for a
+     * removed one, to the node SHA1 (null for an empty one) at DEPTH, and
+     * writes the nodes that change.
+     */
+    private static Update put(String sha1, int depth, Map<String, Entry> changes,
+                              ObjectStore store) {
+        byte[] data = sha1 == null ? null : store.readDecoded(sha1);
+        if (data == null || !startsWith(data, TRIE)) {
+            SortedMap<String, Entry> entries = data == null
+                    ? new TreeMap<>() : readLeaf(sha1, data);
+            int oldCount = entries.size();
+            for (Map.Entry<String, Entry> change : changes.entrySet()) {
+                if (change.getValue() == null) {
+                    entries.remove(change.getKey());
+                } else {
+                    entries.put(change.getKey(), change.getValue());
+                }
+            }
+            return new Update(writeNode(entries, depth, store), oldCount, entries.size());
+        }
+
+        int oldCount = ByteBuffer.wrap(data).getInt(TRIE.length + 1);
+        SortedMap<Integer, String> children = readChildren(data);
+        Map<Integer, Map<String, Entry>> byBucket = new TreeMap<>();
+        for (Map.Entry<String, Entry> change : changes.entrySet()) {
+            byBucket.computeIfAbsent(bucket(hash(change.getKey()), depth), k -> new HashMap<>())
+                    .put(change.getKey(), change.getValue());
+        }
+        int newCount = oldCount;
+        for (Map.Entry<Integer, Map<String, Entry>> bucket : byBucket.entrySet()) {
+            Update child = put(children.get(bucket.getKey()), depth + 1, bucket.getValue(), store);
+            newCount += child.newCount - child.oldCount;
+            if (child.sha1 == null) {
+                children.remove(bucket.getKey());
+            } else {
+                children.put(bucket.getKey(), child.sha1);
+            }
+        }
+        if (newCount <= LEAF_LIMIT) {
+            // small enough again: collapse into a single leaf
+            SortedMap<String, Entry> entries = new TreeMap<>();
+            for (String child : children.values()) {
+                entries.putAll(entries(child, store));
+            }
+            return new Update(writeNode(entries, depth, store), oldCount, newCount);
+        }
+        return new Update(writeTrie(depth, newCount, children, store), oldCount, newCount);
+    }
+
+    /** Writes the node at DEPTH holding ENTRIES, as a leaf or a trie
+     *  depending on their number, and returns its SHA-1, or null if
+     *  ENTRIES is empty. */
+    private static String writeNode(SortedMap<String, Entry> entries, int depth,
+                                    ObjectStore store) {
+        if (entries.isEmpty()) {
+            return null;
+        }
+        if (entries.size() <= LEAF_LIMIT || depth >= MAX_DEPTH) {
+            return writeLeaf(entries, store);
+        }
+        Map<Integer, SortedMap<String, Entry>> byBucket = new TreeMap<>();
+        for (Map.Entry<String, Entry> e : entries.entrySet()) {
+            byBucket.computeIfAbsent(bucket(hash(e.getKey()), depth), k -> new TreeMap<>())
+                    .put(e.getKey(), e.getValue());
+        }
+        SortedMap<Integer, String> children = new TreeMap<>();
+        for (Map.Entry<Integer, SortedMap<String, Entry>> bucket : byBucket.entrySet()) {
+            children.put(bucket.getKey(), writeNode(bucket.getValue(), depth + 1, store));
+        }
+        return writeTrie(depth, entries.size(), children, store);
+    }
+
+    private static String writeLeaf(SortedMap<String, Entry> entries, ObjectStore store) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.writeBytes(LEAF);
+        for (Map.Entry<String, Entry> e : entries.entrySet()) {
+            out.write(e.getValue().kind);
+            out.writeBytes(e.getKey().getBytes(StandardCharsets.UTF_8));
+            out.write(0);
+            out.writeBytes(Utils.sha1ToBytes(e.getValue().sha1));
+        }
+        return writeObject(out.toByteArray(), store);
+    }
+
+    private static String writeTrie(int depth, int count, SortedMap<Integer, String> children,
+                                    ObjectStore store) {
+        ByteBuffer buf = ByteBuffer.allocate(TRIE.length + 9 + children.size() * SHA1_BYTES);
+        buf.put(TRIE);
+        buf.put((byte) depth);
+        buf.putInt(count);
+        int bitmap = 0;
+        for (int bucket : children.keySet()) {
+            bitmap |= 1 << bucket;
+        }
+        buf.putInt(bitmap);
+        for (String child : children.values()) {
+            buf.put(Utils.sha1ToBytes(child));
+        }
+        return writeObject(buf.array(), store);
+    }
+
+    /** Writes DATA to STORE, unless it is stored already, and returns its SHA-1. */
+    private static String writeObject(byte[] data, ObjectStore store) {
+        String sha1 = Utils.sha1(data);
+        store.write(sha1, ObjectStore.TYPE_TREE, data);
+        return sha1;
+    }
+
+    private static SortedMap<String, Entry> readLeaf(String sha1, byte[] data) {
+        if (!startsWith(data, LEAF)) {
+            throw Utils.error("Object %s is not a tree.", sha1);
+        }
+        SortedMap<String, Entry> entries = new TreeMap<>();
+        int pos = LEAF.length;
+        while (pos < data.length) {
+            byte kind = data[pos];
+            int end = pos + 1;
+            while (data[end] != 0) {
+                end += 1;
+            }
+            String name = new String(data, pos + 1, end - pos - 1, StandardCharsets.UTF_8);
+            String entry = Utils.bytesToSha1(Arrays.copyOfRange(data, end + 1,
+                    end + 1 + SHA1_BYTES));
+            entries.put(name, new Entry(kind, entry));
+            pos = end + 1 + SHA1_BYTES;
+        }
+        return entries;
+    }
+
+    /** Returns the children of a stored trie, keyed by bucket. */
+    private static SortedMap<Integer, String> readChildren(byte[] data) {
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        int bitmap = buf.getInt(TRIE.length + 5);
+        buf.position(TRIE.length + 9);
+        SortedMap<Integer, String> children = new TreeMap<>();
+        byte[] sha1 = new byte[SHA1_BYTES];
+        for (int bucket = 0; bucket < 32; bucket += 1) {
+            if ((bitmap & (1 << bucket)) != 0) {
+                buf.get(sha1);
+                children.put(bucket, Utils.bytesToSha1(sha1));
+            }
+        }
+        return children;
+    }
+
+    /**
+     * Puts into RESULT every name whose entry differs between the directory
+     * nodes FROM and TO (either may be null), with the pair of entries.
+     * Tries at the same depth are compared bucket by bucket, and equal
+     * children are skipped.
+     */
+    private static void diffNodes(String from, String to, ObjectStore store,
+                                  Map<String, Entry[]> result) {
+        if (Objects.equals(from, to)) {
+            return;
+        }
+        byte[] a = from == null ? null : store.readDecoded(from);
+        byte[] b = to == null ? null : store.readDecoded(to);
+        if (a != null && b != null && startsWith(a, TRIE) && startsWith(b, TRIE)
+                && a[TRIE.length] == b[TRIE.length]) {
+            SortedMap<Integer, String> childrenA = readChildren(a);
+            SortedMap<Integer, String> childrenB = readChildren(b);
+            Set<Integer> buckets = new TreeSet<>(childrenA.keySet());
+            buckets.addAll(childrenB.keySet());
+            for (int bucket : buckets) {
+                diffNodes(childrenA.get(bucket), childrenB.get(bucket), store, result);
+            }
+            return;
+        }
+        SortedMap<String, Entry> entriesA = from == null ? new TreeMap<>() : entries(from, store);
+        SortedMap<String, Entry> entriesB = to == null ? new TreeMap<>() : entries(to, store);
+        Set<String> names = new TreeSet<>(entriesA.keySet());
+        names.addAll(entriesB.keySet());
+        for (String name : names) {
+            Entry x = entriesA.get(name);
+            Entry y = entriesB.get(name);
+            if (!Objects.equals(x, y)) {
+                result.put(name, new Entry[]{x, y});
+            }
+        }
+    }
+
+    /** Returns a well-mixed hash of NAME that is the same in every run. */
+    private static int hash(String name) {
+        int h = name.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    private static int bucket(int hash, int depth) {
+        return (hash >>> (BITS * depth)) & ((1 << BITS) - 1);
+    }
+
+    private static boolean startsWith(byte[] data, byte[] header) {
+        return data.length >= header.length
+                && Arrays.equals(data, 0, header.length, header, 0, header.length);
+    }
+}
@@ -1,11 +1,14 @@
 package gitlet;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
@@ -14,9 +17,10 @@ import java.nio.file.Paths;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Formatter;
 import java.util.List;
+import java.util.zip.InflaterInputStream;
 
 
 /** Assorted utilities.
@@ -41,17 +45,26 @@ class Utils {
             for (Object val : vals) {
                 if (val instanceof byte[]) {
                     md.update((byte[]) val);
+                    Stats.count(Stats.Counter.BYTES_HASHED, ((byte[]) val).length);
                 } else if (val instanceof String) {
-                    md.update(((String) val).getBytes(StandardCharsets.UTF_8));
+                    byte[] bytes = ((String) val).getBytes(StandardCharsets.UTF_8);
+                    md.update(bytes);
+                    Stats.count(Stats.Counter.BYTES_HASHED, bytes.length);
                 } else {
                     throw new IllegalArgumentException("improper type to sha1");
                 }
             }
-            Formatter result = new Formatter();
-            for (byte b : md.digest()) {
-                result.format("%02x", b);
-            }
-            return result.toString();
+            return bytesToSha1(md.digest());
+        } catch (NoSuchAlgorithmException excp) {
+            throw new IllegalArgumentException("System does not support SHA-1");
+        }
+    }
+
+    /** Returns a fresh SHA-1 MessageDigest, for hashing data that arrives
+     *  in pieces. */
+    static MessageDigest sha1Digest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
         } catch (NoSuchAlgorithmException excp) {
             throw new IllegalArgumentException("System does not support SHA-1");
         }
@@ -63,6 +76,35 @@ class Utils {
         return sha1(vals.toArray(new Object[vals.size()]));
     }
 
+    /** Returns the 20 raw bytes of the hexadecimal SHA-1 UID SHA1. */
+    static byte[] sha1ToBytes(String sha1) {
+        if (sha1.length() != UID_LENGTH) {
+            throw new IllegalArgumentException("not a full SHA-1 UID");
+        }
+        byte[] result = new byte[UID_LENGTH / 2];
+        for (int i = 0; i < result.length; i += 1) {
+            int hi = Character.digit(sha1.charAt(2 * i), 16);
+            int lo = Character.digit(sha1.charAt(2 * i + 1), 16);
+            if (hi < 0 || lo < 0) {
+                throw new IllegalArgumentException("not a full SHA-1 UID");
+            }
+            result[i] = (byte) (hi << 4 | lo);
+        }
+        return result;
+    }
+
+    /** Returns the hexadecimal SHA-1 UID whose 20 raw bytes are BYTES. */
+    static String bytesToSha1(byte[] bytes) {
+        char[] result = new char[2 * bytes.length];
+        for (int i = 0; i < bytes.length; i += 1) {
+            result[2 * i] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+            result[2 * i + 1] = HEX_DIGITS[bytes[i] & 0xf];
+        }
+        return new String(result);
+    }
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
     /* FILE DELETION */
 
     /** Deletes FILE if it exists and is not a directory.  Returns true
@@ -137,12 +179,13 @@ class Utils {
     }
 
     /** Return an object of type T read from FILE, casting it to EXPECTEDCLASS.
-     *  Throws IllegalArgumentException in case of problems. */
+     *  FILE may be stored deflated (see DEFLATED).  Throws
+     *  IllegalArgumentException in case of problems. */
     static <T extends Serializable> T readObject(File file,
                                                  Class<T> expectedClass) {
         try {
             ObjectInputStream in =
-                new ObjectInputStream(new FileInputStream(file));
+                new ObjectInputStream(decode(new FileInputStream(file)));
             T result = expectedClass.cast(in.readObject());
             in.close();
             return result;
@@ -157,6 +200,38 @@ class Utils {
         writeContents(file, serialize(obj));
     }
 
+    /* OBJECT ENCODING */
+
+    /** The first byte of an object file whose remaining bytes are a zlib
+     *  stream.  Uncompressed objects start with "blob " or with the
+     *  serialization magic number, never with this byte. */
+    static final byte DEFLATED = 'z';
+
+    /** Returns a stream of the decoded contents of the object file read
+     *  from IN, choosing the decoder from its first byte. */
+    static InputStream decode(InputStream in) throws IOException {
+        BufferedInputStream buffered = new BufferedInputStream(in);
+        buffered.mark(1);
+        if (buffered.read() == DEFLATED) {
+            return new InflaterInputStream(buffered);
+        }
+        buffered.reset();
+        return buffered;
+    }
+
+    /** Returns the decoded contents of the object file whose bytes are DATA. */
+    static byte[] decode(byte[] data) {
+        if (data.length == 0 || data[0] != DEFLATED) {
+            return data;
+        }
+        try (InputStream in = new InflaterInputStream(
+                new ByteArrayInputStream(data, 1, data.length - 1))) {
+            return in.readAllBytes();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
     /* DIRECTORIES */
 
     /** Filter out all but plain files. */
@@ -173,6 +248,7 @@ class Utils {
      *  not denote a directory. */
     static List<String> plainFilenamesIn(File dir) {
         String[] files = dir.list(PLAIN_FILES);
+        Stats.count(Stats.Counter.DIRECTORY_LISTINGS);
         if (files == null) {
             return null;
         } else {
@@ -204,6 +280,18 @@ class Utils {
         return Paths.get(first.getPath(), others).toFile();
     }
 
+    /** Returns the sizes and modification times of FILES, which differ
+     *  from an earlier result once any of them is written, replaced,
+     *  created or deleted. */
+    static List<Long> stamp(File... files) {
+        List<Long> result = new ArrayList<>(2 * files.length);
+        for (File file : files) {
+            result.add(file.length());
+            result.add(file.lastModified());
+        }
+        return result;
+    }
+
 
     /* SERIALIZATION UTILITIES */
 
@@ -220,6 +308,22 @@ class Utils {
         }
     }
 
+    /** Return an object of type T deserialized from BYTES, casting it to
+     *  EXPECTEDCLASS.  Throws IllegalArgumentException in case of problems. */
+    static <T extends Serializable> T deserialize(byte[] bytes,
+                                                  Class<T> expectedClass) {
+        try {
+            ObjectInputStream in =
+                new ObjectInputStream(new ByteArrayInputStream(bytes));
+            T result = expectedClass.cast(in.readObject());
+            in.close();
+            return result;
+        } catch (IOException | ClassCastException
+                 | ClassNotFoundException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
 
 
     /* MESSAGES AND ERROR REPORTING */